@@ -1,10 +1,24 @@
 package metro;
 
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.TunnelsMap;
+import metro.algorithm.map.TunnelsMapLoader;
+import metro.algorithm.replay.SimulationReplay;
+import metro.algorithm.sweep.ParameterSweep;
+import metro.algorithm.sweep.Scenario;
+import metro.algorithm.sweep.ScenarioResult;
 import metro.gui.MetroGUI;
+import metro.gui.ReplayWindow;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Application creating a simulation of a metro.
- * There are 3 trains: T1, T2, T3.
+ * By default there are 3 trains: T1, T2, T3, but the simulation model accepts any number of routes.
  * Each train has an assigned route, going from one station's entrance to another.
  * Each train moves forward and backward along its route.
  * <p>
@@ -12,6 +26,12 @@ import metro.gui.MetroGUI;
  * The gui also visualizes the algorithm.
  * <p>
  * Invoke its static start() method to initialize
+ * <p>
+ * Run with --replay log [map] to replay a simulation recorded by SimulationModel.startRecording(),
+ * on the default map or on a map file.
+ * <p>
+ * Run with --sweep csv [hours] [sleep times] to run every route assignment of the default trains without the GUI
+ * and write their throughput to a CSV file.
  *
  * @author Mariusz Galjan
  */
@@ -20,7 +40,55 @@ public class MetroApplication {
         new MetroGUI();
     }
 
-    public static void main(String[] args) {
-        MetroApplication.start();
+    /**
+     * Opens a window replaying a recorded simulation.
+     *
+     * @param logFile event log of the simulation
+     * @param mapFile map the simulation ran on, or null for the default map
+     * @throws IOException if the files can't be read
+     */
+    public static void replay(String logFile, String mapFile) throws IOException {
+        TunnelsMap map = mapFile == null ? TunnelsMap.getDefault() : TunnelsMapLoader.load(Paths.get(mapFile));
+        SimulationReplay replay = new SimulationReplay(map, Paths.get(logFile));
+        SwingUtilities.invokeLater(() -> new ReplayWindow(replay));
+    }
+
+    /**
+     * Runs every route assignment of the default number of trains between the stations' entrances
+     * on the default map, each for the same simulated time, and writes the results to a CSV file.
+     *
+     * @param csvFile    file the results are written to
+     * @param hours      simulated time of every scenario in hours
+     * @param sleepTimes times in ms a train can spend on one tile, every assignment of them to the trains is run,
+     *                   or an empty array for the default speeds
+     * @throws IOException if the results can't be written
+     */
+    public static void sweep(String csvFile, double hours, int[] sleepTimes) throws IOException {
+        TunnelsMap map = TunnelsMap.getDefault();
+        int trains = ModelParameters.DEFAULT_NUMBER_OF_TRAINS;
+        List<int[]> speedSettings = sleepTimes.length == 0
+                ? Collections.singletonList(new int[]{100, 200, 300})
+                : ParameterSweep.createSpeedSettings(trains, sleepTimes);
+        List<Scenario> scenarios = ParameterSweep.createScenarios(map.getStationsEntrances(), trains, speedSettings);
+        System.out.println("Running " + scenarios.size() + " scenarios");
+
+        long start = System.nanoTime();
+        List<ScenarioResult> results = new ParameterSweep(map, (long) (hours * 3_600_000)).run(scenarios);
+        ParameterSweep.writeCsv(results, Paths.get(csvFile));
+        System.out.printf("Done in %.1f s%n", (System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("--replay"))
+            MetroApplication.replay(args[1], args.length > 2 ? args[2] : null);
+        else if (args.length >= 2 && args[0].equals("--sweep")) {
+            double hours = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+            int[] sleepTimes = new int[Math.max(0, args.length - 3)];
+            for (int i = 0; i < sleepTimes.length; i++)
+                sleepTimes[i] = Integer.parseInt(args[i + 3]);
+            MetroApplication.sweep(args[1], hours, sleepTimes);
+        }
+        else
+            MetroApplication.start();
     }
 }
@@ -0,0 +1,407 @@
+package metro.algorithm;
+
+import metro.algorithm.map.AdmissionMode;
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.SegmentLock;
+import metro.algorithm.map.TunnelsMap;
+import metro.algorithm.map.TunnelsMapMonitor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A headless, single-threaded simulation of the metro driven by a queue of timestamped events.
+ * <p>
+ * Each event means "the train advances one tile". Trains follow the same routes as in SimulationModel
+ * and enter the shared segments on the same rules, in either AdmissionMode, but the time is simulated,
+ * so the simulation runs as fast as the CPU allows and its results are always the same.
+ * <p>
+ * Use runUntil() to advance the simulated time.
+ *
+ * @see SimulationModel
+ * @see SegmentLock
+ */
+public class EventDrivenSimulation {
+    /**
+     * Contains trains' routes and wagons
+     */
+    private final ModelParameters modelParams;
+
+    /**
+     * Tunnel's map the trains move on
+     */
+    private final TunnelsMapMonitor monitor;
+
+    /**
+     * Shared segments of the trains' routes
+     */
+    private final SegmentLock segmentLock;
+
+    /**
+     * Pending events, ordered by time and then by the order of scheduling
+     */
+    private final PriorityQueue<TrainEvent> events = new PriorityQueue<>();
+
+    /**
+     * Trains waiting for a segment to be released
+     */
+    private final List<Integer> blockedTrains = new LinkedList<>();
+
+    /**
+     * Trains waiting for a tile to be released, in the AdmissionMode.TILES mode
+     */
+    private final List<Integer> tileBlockedTrains = new LinkedList<>();
+
+    /**
+     * True if the trains reserve the tiles ahead, in the AdmissionMode.TILES mode
+     */
+    private final boolean tilesReserved;
+
+    /**
+     * Default simulated time a train spends on one tile, in ms.
+     * Trains with higher ids take the values cyclically.
+     */
+    private static final int[] DEFAULT_SLEEP_TIMES = {100, 200, 300};
+
+    /**
+     * Value of blockedSince for a train which isn't blocked
+     */
+    private static final long NOT_BLOCKED = -1;
+
+    /**
+     * Simulated time a train spends on one tile in ms, indexed by train id
+     */
+    private final int[] sleepTimes;
+
+    /**
+     * Index of the crossing each train is leaving (in the forward order of the route)
+     */
+    private final int[] crossingIndex;
+    /**
+     * Number of tiles each train has already passed since leaving the crossing
+     */
+    private final int[] tileIndex;
+    private final boolean[] moveForward;
+    private final boolean[] previousSegmentReleased;
+    /**
+     * Simulated time each train has been blocked since, or NOT_BLOCKED
+     */
+    private final long[] blockedSince;
+    /**
+     * Packed index of the tile each train in tileBlockedTrains waits for
+     */
+    private final int[] awaitedTiles;
+
+    private final long[] tilesMoved;
+    private final long[] roundTrips;
+    private final long[] waitTime;
+
+    /**
+     * Number of the moves onto a tile occupied by another train
+     */
+    private long collisions = 0;
+
+    /**
+     * Current simulated time in ms
+     */
+    private long currentTime = 0;
+
+    /**
+     * Used to order events happening at the same time
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Initializes routes to the default values.
+     */
+    public EventDrivenSimulation() {
+        this(new ModelParameters());
+    }
+
+    /**
+     * @param routes an array of Coordinates pairs, specifying each route's start and end
+     *               e.g. For train 1 route routes[0][0] = start, route[0][1] = end
+     *               For train 2 route routes[1][0] = start, route[1][1] = end
+     */
+    public EventDrivenSimulation(Coordinates[][] routes) {
+        this(new ModelParameters(routes));
+    }
+
+    /**
+     * @param map    layout of the tunnels the trains move on
+     * @param routes an array of Coordinates pairs, specifying each route's start and end
+     */
+    public EventDrivenSimulation(TunnelsMap map, Coordinates[][] routes) {
+        this(new ModelParameters(map, routes));
+    }
+
+    /**
+     * @param map    layout of the tunnels the trains move on
+     * @param routes an array of Coordinates pairs, specifying each route's start and end
+     * @param mode   how the trains are admitted into the shared parts of their routes
+     */
+    public EventDrivenSimulation(TunnelsMap map, Coordinates[][] routes, AdmissionMode mode) {
+        this(new ModelParameters(map, routes), mode);
+    }
+
+    private EventDrivenSimulation(ModelParameters modelParams) {
+        this(modelParams, AdmissionMode.SEGMENTS);
+    }
+
+    private EventDrivenSimulation(ModelParameters modelParams, AdmissionMode mode) {
+        this.modelParams = modelParams;
+        monitor = new TunnelsMapMonitor(modelParams.getMap(), modelParams.trains, modelParams.crossings);
+        monitor.setAdmissionMode(mode);
+        monitor.parkTrains();
+        segmentLock = monitor.getSegmentLock();
+        tilesReserved = mode == AdmissionMode.TILES;
+
+        int numberOfTrains = modelParams.getNumberOfTrains();
+        sleepTimes = new int[numberOfTrains];
+        crossingIndex = new int[numberOfTrains];
+        tileIndex = new int[numberOfTrains];
+        moveForward = new boolean[numberOfTrains];
+        previousSegmentReleased = new boolean[numberOfTrains];
+        blockedSince = new long[numberOfTrains];
+        Arrays.fill(blockedSince, NOT_BLOCKED);
+        awaitedTiles = new int[numberOfTrains];
+        tilesMoved = new long[numberOfTrains];
+        roundTrips = new long[numberOfTrains];
+        waitTime = new long[numberOfTrains];
+
+        for (int i = 0; i < numberOfTrains; i++) {
+            sleepTimes[i] = DEFAULT_SLEEP_TIMES[i % DEFAULT_SLEEP_TIMES.length];
+            moveForward[i] = true;
+            schedule(i, 0);
+        }
+    }
+
+    /**
+     * Processes every event up to the given simulated time (inclusive).
+     *
+     * @param time simulated time in ms
+     */
+    public void runUntil(long time) {
+        while (!events.isEmpty() && events.peek().time <= time) {
+            TrainEvent event = events.poll();
+            currentTime = event.time;
+            advance(event.train);
+        }
+        if (time > currentTime)
+            currentTime = time;
+    }
+
+    /**
+     * Moves the train one tile forward along its route, if it can enter the next segment
+     * and, in the AdmissionMode.TILES mode, reserve the tiles ahead.
+     * Otherwise, the train waits until another train releases a segment or the tile.
+     *
+     * @param train id of the train
+     */
+    private void advance(int train) {
+        Coordinates[] route = modelParams.crossings[train];
+        boolean forward = moveForward[train];
+
+        Coordinates start = route[crossingIndex[train]];
+        Coordinates end = route[crossingIndex[train] + (forward ? 1 : -1)];
+
+        if (tileIndex[train] == 0) {
+            long releases = segmentLock.getReleaseCount();
+            boolean entered = segmentLock.tryReserveTrainSegments(train, start, forward);
+            // the train stopped waiting for a segment or left the start of its route
+            if (segmentLock.getReleaseCount() != releases)
+                wakeBlockedTrains();
+            if (!entered) {
+                blockedSince[train] = currentTime;
+                blockedTrains.add(train);
+                return;
+            }
+        }
+
+        int startCell = monitor.cellOf(start);
+        int step = monitor.cellStep(start, end);
+        int cell = startCell + step * tileIndex[train];
+        if (tilesReserved) {
+            int ahead = Math.min(monitor.getTrainPosition(train).getLength(),
+                    TunnelsMapMonitor.distance(start, end) - tileIndex[train]);
+            int busy = monitor.tryReserveTiles(train, cell, step, ahead);
+            if (busy >= 0) {
+                blockedSince[train] = currentTime;
+                awaitedTiles[train] = busy;
+                tileBlockedTrains.add(train);
+                return;
+            }
+        }
+
+        int occupant = monitor.getOccupant(cell);
+        if (occupant != TunnelsMapMonitor.NO_TRAIN && occupant != train)
+            collisions++;
+        monitor.moveTrain(train, cell);
+        tilesMoved[train]++;
+        if (tilesReserved)
+            wakeTileBlockedTrains();
+
+        if (!previousSegmentReleased[train] && !monitor.trainIsOnCrossing(train, startCell)) {
+            previousSegmentReleased[train] = true;
+            if (segmentLock.releaseTrainSegments(train, start, forward))
+                wakeBlockedTrains();
+        }
+
+        tileIndex[train]++;
+        if (tileIndex[train] == TunnelsMapMonitor.distance(start, end)) {
+            // the train arrived at the next crossing
+            tileIndex[train] = 0;
+            previousSegmentReleased[train] = false;
+            crossingIndex[train] += forward ? 1 : -1;
+
+            // after getting to the destination, the train turns around and goes back
+            if (crossingIndex[train] == route.length - 1 || crossingIndex[train] == 0) {
+                moveForward[train] = !forward;
+                if (moveForward[train])
+                    roundTrips[train]++;
+            }
+        }
+        schedule(train, currentTime + sleepTimes[train]);
+    }
+
+    /**
+     * Lets every blocked train try to enter its segment again, in the order they were blocked.
+     * Called whenever the release count of the segments changes.
+     */
+    private void wakeBlockedTrains() {
+        for (int train : blockedTrains) {
+            waitTime[train] += currentTime - blockedSince[train];
+            blockedSince[train] = NOT_BLOCKED;
+            schedule(train, currentTime);
+        }
+        blockedTrains.clear();
+    }
+
+    /**
+     * Lets every train waiting for a tile that was released try to move again, in the order they were blocked.
+     */
+    private void wakeTileBlockedTrains() {
+        for (Iterator<Integer> it = tileBlockedTrains.iterator(); it.hasNext(); ) {
+            int train = it.next();
+            if (monitor.getTileReservations().getOwner(awaitedTiles[train]) == TunnelsMapMonitor.NO_TRAIN) {
+                waitTime[train] += currentTime - blockedSince[train];
+                blockedSince[train] = NOT_BLOCKED;
+                schedule(train, currentTime);
+                it.remove();
+            }
+        }
+    }
+
+    private void schedule(int train, long time) {
+        events.add(new TrainEvent(time, nextSequence++, train));
+    }
+
+    /**
+     * Checks if the simulation can't progress any more, because every train waits for a segment
+     * or a tile taken by another train.
+     *
+     * @return true if no train can move
+     */
+    public boolean isDeadlocked() {
+        return events.isEmpty() && (!blockedTrains.isEmpty() || !tileBlockedTrains.isEmpty());
+    }
+
+    /**
+     * Returns the number of times a train moved onto a tile occupied by another train,
+     * which is 0 as long as the shared segments keep the trains apart.
+     *
+     * @return number of collisions so far
+     */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Set the simulated time a train spends on one tile
+     *
+     * @param train     id of the train
+     * @param sleepTime time in ms
+     */
+    public void setSleepTime(int train, int sleepTime) {
+        sleepTimes[train] = sleepTime;
+    }
+
+    /**
+     * Returns number of trains in the simulation.
+     *
+     * @return number of trains
+     */
+    public int getNumberOfTrains() {
+        return modelParams.getNumberOfTrains();
+    }
+
+    /**
+     * Returns current simulated time.
+     *
+     * @return simulated time in ms
+     */
+    public long getCurrentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Returns the monitor attached to this simulation.
+     *
+     * @return Monitor of the tunnel's map.
+     */
+    public TunnelsMapMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * @param train id of the train
+     * @return number of tiles the train has moved
+     */
+    public long getTilesMoved(int train) {
+        return tilesMoved[train];
+    }
+
+    /**
+     * @param train id of the train
+     * @return number of times the train got back to the start of its route
+     */
+    public long getRoundTrips(int train) {
+        return roundTrips[train];
+    }
+
+    /**
+     * @param train id of the train
+     * @return simulated time in ms the train spent waiting for shared segments, and for tiles in the
+     * AdmissionMode.TILES mode, up to the current time if the train is still waiting
+     */
+    public long getWaitTime(int train) {
+        if (blockedSince[train] == NOT_BLOCKED)
+            return waitTime[train];
+        return waitTime[train] + currentTime - blockedSince[train];
+    }
+
+    /**
+     * Event of a train advancing one tile at the given simulated time
+     */
+    private static class TrainEvent implements Comparable<TrainEvent> {
+        private final long time;
+        private final long sequence;
+        private final int train;
+
+        private TrainEvent(long time, long sequence, int train) {
+            this.time = time;
+            this.sequence = sequence;
+            this.train = train;
+        }
+
+        @Override
+        public int compareTo(TrainEvent other) {
+            if (time != other.time)
+                return Long.compare(time, other.time);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -2,43 +2,42 @@ package metro.algorithm;
 
 import metro.algorithm.map.Coordinates;
 import metro.algorithm.map.FieldTypes;
-import metro.algorithm.map.TunnelsMapMonitor;
-
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import metro.algorithm.map.TunnelsMap;
 
 /**
  * Class used to specify parameters of the metro simulation:
+ * - tunnel's map
  * - trains' wagons
- * - trains' routes
+ * - trains' routes, planned by the map's Router
  *
  * @see Coordinates
  * @see FieldTypes
  */
 public class ModelParameters {
-    public static final int NUMBER_OF_TRAINS = 3;
+    /**
+     * Number of trains in the default simulation
+     */
+    public static final int DEFAULT_NUMBER_OF_TRAINS = 3;
     /**
      * Number of wagons in each train
      */
     public static final int TRAIN_LENGTH = 3;
 
     /**
-     * A constant variable specifying the position of the crossing on the tunnel's map
+     * Layout of the tunnels the trains move on
      */
-    private static final Coordinates middle
-            = new Coordinates(TunnelsMapMonitor.getHeight() / 2, TunnelsMapMonitor.getWidth() / 2);
+    private final TunnelsMap map;
 
     /**
-     * Array of trains.
+     * Array of trains, indexed by train id.
      * Each train is an array of coordinates of its wagons.
      */
-    public Coordinates[][] trains = new Coordinates[NUMBER_OF_TRAINS][];
+    public Coordinates[][] trains;
 
     /**
-     * Specifies the routes of trains
+     * Specifies the routes of trains, indexed by train id
      */
-    public Coordinates[][] crossings = new Coordinates[NUMBER_OF_TRAINS][];
+    public Coordinates[][] crossings;
 
     /**
      * Specifies start and end for each train's route
@@ -53,143 +52,102 @@ public class ModelParameters {
      * Initializes routes to the default values.
      */
     public ModelParameters() {
-        for (int i = 0; i < trains.length; i++) {
-            trains[i] = generateTrain(initialPoints[i][0]);
-            crossings[i] = generateCrossings(initialPoints[i][0], initialPoints[i][1]);
-        }
+        this(TunnelsMap.getDefault(), null);
     }
 
     /**
      * @param routes an array of Coordinates pairs, specifying each route's start and end
      *               e.g. For train 1 route routes[0][0] = start, route[0][1] = end
      *               For train 2 route routes[1][0] = start, route[1][1] = end
+     *               The number of routes defines the number of trains.
      */
     public ModelParameters(Coordinates[][] routes) {
-        initialPoints = routes;
-        for (int i = 0; i < trains.length; i++) {
-            trains[i] = generateTrain(initialPoints[i][0]);
-            crossings[i] = generateCrossings(initialPoints[i][0], initialPoints[i][1]);
-        }
+        this(TunnelsMap.getDefault(), routes);
     }
 
-
     /**
-     * Generates array of coordinates specifying the route from start to the end via crossings on the tunnel's map
-     *
-     * @param start coordinates of the starting point
-     * @param end   coordinates of the ending point
-     * @return array of coordinates of crossings the route goes through
+     * @param map    layout of the tunnels the trains move on
+     * @param routes an array of Coordinates pairs, specifying each route's start and end,
+     *               or null for the default routes
      */
-    private Coordinates[] generateCrossings(Coordinates start, Coordinates end) {
-        List<Coordinates> route = new LinkedList<>();
-
-        // first, we have to check if start and end are station entrances opposite to each other in the same line
-        // because then we don't have to go into the passage
-        if (start.getRow() == end.getRow() && Math.abs(end.getCol() - start.getCol()) == TunnelsMapMonitor.getWidth() - 3) {
-            route.add(start);
-            route.add(new Coordinates(start.getRow(), TunnelsMapMonitor.getWidth() / 2));
-            route.add(end);
-            return route.toArray(new Coordinates[0]);
-        }
-        if (start.getCol() == end.getCol() && Math.abs(end.getRow() - start.getRow()) == TunnelsMapMonitor.getHeight() - 3) {
-            route.add(start);
-            route.add(new Coordinates(TunnelsMapMonitor.getHeight() / 2, start.getCol()));
-            route.add(end);
-            return route.toArray(new Coordinates[0]);
-        }
-
-        // if not, we create a route through the passage by connecting two routes:
-        //  - from start the middle
-        //  - a reversed route from end to the middle
-        route = getCrossingsToMiddle(start);
-        route.add(middle);
-
-        List<Coordinates> routeToMiddleFromEnd = getCrossingsToMiddle(end);
-        Collections.reverse(routeToMiddleFromEnd);
-        route.addAll(routeToMiddleFromEnd);
-
-        return route.toArray(new Coordinates[0]);
+    public ModelParameters(TunnelsMap map, Coordinates[][] routes) {
+        this(map, routes, 0);
     }
 
+    /**
+     * @param map               layout of the tunnels the trains move on
+     * @param routes            an array of Coordinates pairs, specifying each route's start and end,
+     *                          or null for the default routes
+     * @param congestionPenalty additional cost, in tiles, of every planned route already using a corridor.
+     *                          With 0 every train takes its shortest route, with higher values the trains
+     *                          spread over more corridors.
+     * @throws IllegalArgumentException if there is no route between some start and end
+     */
+    public ModelParameters(TunnelsMap map, Coordinates[][] routes, int congestionPenalty) {
+        this.map = map;
+        if (routes != null)
+            initialPoints = routes;
+        crossings = map.getRouter().routeAll(initialPoints, congestionPenalty);
+        trains = new Coordinates[initialPoints.length][];
+        for (int i = 0; i < trains.length; i++)
+            trains[i] = generateTrain(crossings[i]);
+    }
 
     /**
-     * Generates list of crossings to pass through when going from start to the middle of the map,
-     * middle exclusive
+     * Creates the parameters of a saved simulation, with the trains' wagons where they were and the routes
+     * planned before.
      *
-     * @param start coordinates of the starting point
-     * @return list of crossing the train passes from the starting point to the middle
-     * in range [start, middle)
+     * @param map       layout of the tunnels the trains move on
+     * @param trains    wagons of every train, indexed by train id
+     * @param crossings crossings of the route of every train, indexed by train id
      */
-    private List<Coordinates> getCrossingsToMiddle(Coordinates start) {
-        List<Coordinates> route = new LinkedList<>();
-        Coordinates actEnd;
-
-        // to get to the middle every train has to pass one crossing in between two stations
-        if (start.getCol() == 1 || start.getCol() == TunnelsMapMonitor.getWidth() - 2) {
-            actEnd = new Coordinates(start.getRow(), TunnelsMapMonitor.getWidth() / 2);
-        } else {
-            actEnd = new Coordinates(TunnelsMapMonitor.getHeight() / 2, start.getCol());
-        }
-        route.add(start);
-        route.add(actEnd);
-
-        return route;
+    ModelParameters(TunnelsMap map, Coordinates[][] trains, Coordinates[][] crossings) {
+        this.map = map;
+        this.trains = trains;
+        this.crossings = crossings;
     }
 
+    /**
+     * Returns the tunnel's map of the simulation.
+     *
+     * @return layout of the tunnels
+     */
+    public TunnelsMap getMap() {
+        return map;
+    }
 
     /**
-     * Appends a line represented by a list of coordinates to the route.
-     * The line includes points in range [start, end).
-     * A line can be horizontal or vertical.
+     * Returns the number of trains in the simulation.
      *
-     * @param route      list of coordinates the line is supposed to be added to
-     * @param start      coordinates of the starting point
-     * @param end        coordinates of the end point
-     * @param horizontal defines whether the line is horizontal or vertical
+     * @return number of trains, equal to the number of routes
      */
-    private void addLine(List<Coordinates> route, Coordinates start, Coordinates end, boolean horizontal) {
-        if (horizontal) {
-            if (start.getCol() < end.getCol()) {
-                // left to right
-                for (int i = start.getCol(); i < end.getCol(); i++)
-                    route.add(new Coordinates(start.getRow(), i));
-            } else {
-                // right to left
-                for (int i = start.getCol(); i > end.getCol(); i--)
-                    route.add(new Coordinates(start.getRow(), i));
-            }
-        } else {
-            if (start.getRow() < end.getRow()) {
-                // bottom to top
-                for (int i = start.getRow(); i < end.getRow(); i++)
-                    route.add(new Coordinates(i, start.getCol()));
-            } else {
-                // top to bottom
-                for (int i = start.getRow(); i > end.getRow(); i--)
-                    route.add(new Coordinates(i, start.getCol()));
-            }
-        }
+    public int getNumberOfTrains() {
+        return trains.length;
     }
 
 
     /**
-     * Generates an array of coordinates specifying train's wagons, based on its starting point
+     * Generates an array of coordinates specifying train's wagons.
+     * The wagons take the first tiles of the train's route.
      *
-     * @param start coordinates of the train's starting point
+     * @param route crossings of the train's route
      * @return array of coordinates of train's wagons of length TRAIN_LENGTH
+     * @throws IllegalArgumentException if the route is shorter than the train
      */
-    private Coordinates[] generateTrain(Coordinates start) {
-        List<Coordinates> train = new LinkedList<>();
-
-        if (start.equals(new Coordinates(0, 1))
-                || start.equals(new Coordinates(0, 9))
-                || start.equals(new Coordinates(16, 1))
-                || start.equals(new Coordinates(16, 9))) {
-            addLine(train, start, new Coordinates(start.getRow(), TunnelsMapMonitor.getWidth() / 2), true);
-        } else {
-            addLine(train, start, new Coordinates(TunnelsMapMonitor.getHeight() / 2, start.getCol()), false);
+    private Coordinates[] generateTrain(Coordinates[] route) {
+        Coordinates[] train = new Coordinates[TRAIN_LENGTH];
+        int wagon = 0;
+        for (int i = 0; i < route.length - 1 && wagon < TRAIN_LENGTH; i++) {
+            Coordinates start = route[i];
+            Coordinates end = route[i + 1];
+            int rowStep = Integer.signum(end.getRow() - start.getRow());
+            int colStep = Integer.signum(end.getCol() - start.getCol());
+            int row = start.getRow(), col = start.getCol();
+            for (; (row != end.getRow() || col != end.getCol()) && wagon < TRAIN_LENGTH; row += rowStep, col += colStep)
+                train[wagon++] = new Coordinates(row, col);
         }
-
-        return train.subList(0, TRAIN_LENGTH).toArray(new Coordinates[0]);
+        if (wagon < TRAIN_LENGTH)
+            throw new IllegalArgumentException("The route from " + route[0] + " is too short for a train");
+        return train;
     }
 }
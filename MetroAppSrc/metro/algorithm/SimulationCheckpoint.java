@@ -0,0 +1,205 @@
+package metro.algorithm;
+
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.TunnelsMap;
+import metro.algorithm.map.TunnelsMapMonitor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * State of a paused SimulationModel, saved to and loaded from a binary file.
+ * <p>
+ * The file holds the size of the map and, for every train, its wagons, the crossings of its route, the crossing
+ * it's leaving, its direction, the tile of the corridor it moves to next and its speed, followed by the owners
+ * of the shared segments:
+ * <pre>
+ * "METROSAV" version:int width:int height:int trains:int
+ * for every train: wagons:int cells:int[wagons] crossings:int cells:int[crossings]
+ *                  crossing:int forward:byte tile:int sleepTime:int
+ * segments:int owners:int[segments]
+ * </pre>
+ * The occupancy of the tiles isn't stored, it's rebuilt from the wagons.
+ *
+ * @see SimulationModel#save(Path)
+ * @see SimulationModel#load(Path, TunnelsMap, java.util.concurrent.ExecutorService)
+ */
+final class SimulationCheckpoint {
+    private static final byte[] MAGIC = {'M', 'E', 'T', 'R', 'O', 'S', 'A', 'V'};
+    private static final int VERSION = 2;
+
+    final Coordinates[][] wagons;
+    final Coordinates[][] crossings;
+    final int[] crossingIndexes;
+    final boolean[] moveForward;
+    /**
+     * Tile of the corridor each train moves to next, 0 if it waits at the crossing
+     */
+    final int[] tiles;
+    final int[] sleepTimes;
+    /**
+     * Train holding each shared segment or TunnelsMapMonitor.NO_TRAIN, indexed by the global order of the segments
+     */
+    final int[] segmentOwners;
+
+    SimulationCheckpoint(Coordinates[][] wagons, Coordinates[][] crossings, int[] crossingIndexes,
+                         boolean[] moveForward, int[] tiles, int[] sleepTimes, int[] segmentOwners) {
+        this.wagons = wagons;
+        this.crossings = crossings;
+        this.crossingIndexes = crossingIndexes;
+        this.moveForward = moveForward;
+        this.tiles = tiles;
+        this.sleepTimes = sleepTimes;
+        this.segmentOwners = segmentOwners;
+    }
+
+    /**
+     * Returns the segments held by the train.
+     *
+     * @param train id of the train
+     * @return positions of the segments in the global order of the segments
+     */
+    int[] getHeldSegments(int train) {
+        int[] held = new int[segmentOwners.length];
+        int count = 0;
+        for (int segment = 0; segment < segmentOwners.length; segment++) {
+            if (segmentOwners[segment] == train)
+                held[count++] = segment;
+        }
+        return Arrays.copyOf(held, count);
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file, which then replaces the given one,
+     * so a failed save never leaves a damaged checkpoint.
+     *
+     * @param file   destination file
+     * @param width  width of the map
+     * @param height height of the map
+     * @throws IOException if the file can't be written
+     */
+    void write(Path file, int width, int height) throws IOException {
+        int size = MAGIC.length + 5 * Integer.BYTES + segmentOwners.length * Integer.BYTES;
+        for (int i = 0; i < wagons.length; i++)
+            size += (wagons[i].length + crossings[i].length + 5) * Integer.BYTES + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(wagons.length);
+        for (int i = 0; i < wagons.length; i++) {
+            putCells(buffer, wagons[i], width);
+            putCells(buffer, crossings[i], width);
+            buffer.putInt(crossingIndexes[i]).put((byte) (moveForward[i] ? 1 : 0)).putInt(tiles[i]).putInt(sleepTimes[i]);
+        }
+        buffer.putInt(segmentOwners.length);
+        for (int owner : segmentOwners)
+            buffer.putInt(owner);
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putCells(ByteBuffer buffer, Coordinates[] cells, int width) {
+        buffer.putInt(cells.length);
+        for (Coordinates c : cells)
+            buffer.putInt(c.getRow() * width + c.getCol());
+    }
+
+    /**
+     * Reads a checkpoint saved on the given map.
+     *
+     * @param file checkpoint file
+     * @param map  layout of the tunnels the simulation ran on
+     * @return the read checkpoint
+     * @throws IOException if the file can't be read or isn't a checkpoint of the map
+     */
+    static SimulationCheckpoint read(Path file, TunnelsMap map) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a simulation checkpoint");
+            int version = buffer.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported checkpoint version " + version);
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (width != map.getWidth() || height != map.getHeight())
+                throw new IOException("The checkpoint was saved on a " + width + "x" + height + " map, not "
+                        + map.getWidth() + "x" + map.getHeight());
+            int trains = readCount(buffer);
+
+            Coordinates[][] wagons = new Coordinates[trains][];
+            Coordinates[][] crossings = new Coordinates[trains][];
+            int[] crossingIndexes = new int[trains];
+            boolean[] moveForward = new boolean[trains];
+            int[] tiles = new int[trains];
+            int[] sleepTimes = new int[trains];
+            for (int i = 0; i < trains; i++) {
+                wagons[i] = readCells(buffer, width, height);
+                crossings[i] = readCells(buffer, width, height);
+                crossingIndexes[i] = buffer.getInt();
+                if (crossingIndexes[i] < 0 || crossingIndexes[i] >= crossings[i].length)
+                    throw new IOException("Train " + (i + 1) + " is at an invalid crossing " + crossingIndexes[i]);
+                moveForward[i] = buffer.get() != 0;
+                tiles[i] = buffer.getInt();
+                checkTile(i, crossings[i], crossingIndexes[i], moveForward[i], tiles[i]);
+                sleepTimes[i] = buffer.getInt();
+            }
+            int[] segmentOwners = new int[readCount(buffer)];
+            for (int i = 0; i < segmentOwners.length; i++) {
+                segmentOwners[i] = buffer.getInt();
+                if (segmentOwners[i] < -1 || segmentOwners[i] >= trains)
+                    throw new IOException("Segment " + i + " is held by an invalid train " + segmentOwners[i]);
+            }
+            return new SimulationCheckpoint(wagons, crossings, crossingIndexes, moveForward, tiles, sleepTimes,
+                    segmentOwners);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is incomplete", e);
+        }
+    }
+
+    /**
+     * Checks if the train's tile lies in the corridor it's moving along.
+     */
+    private static void checkTile(int train, Coordinates[] crossings, int crossing, boolean moveForward, int tile)
+            throws IOException {
+        if (tile == 0)
+            return;
+        int next = moveForward ? crossing + 1 : crossing - 1;
+        if (tile < 0 || next < 0 || next >= crossings.length
+                || tile >= TunnelsMapMonitor.distance(crossings[crossing], crossings[next]))
+            throw new IOException("Train " + (train + 1) + " is at an invalid tile " + tile);
+    }
+
+    private static int readCount(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining())
+            throw new IOException("Invalid count " + count);
+        return count;
+    }
+
+    private static Coordinates[] readCells(ByteBuffer buffer, int width, int height) throws IOException {
+        Coordinates[] cells = new Coordinates[readCount(buffer)];
+        for (int i = 0; i < cells.length; i++) {
+            int cell = buffer.getInt();
+            if (cell < 0 || cell >= width * height)
+                throw new IOException("Tile " + cell + " is outside the map");
+            cells[i] = new Coordinates(cell / width, cell % width);
+        }
+        return cells;
+    }
+}
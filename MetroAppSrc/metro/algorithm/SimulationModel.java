@@ -1,8 +1,20 @@
 package metro.algorithm;
 
+import metro.algorithm.map.AdmissionMode;
 import metro.algorithm.map.Coordinates;
-import metro.algorithm.map.FieldTypes;
+import metro.algorithm.map.PauseGate;
+import metro.algorithm.map.SegmentLock;
+import metro.algorithm.map.TrainPosition;
+import metro.algorithm.map.TunnelsMap;
 import metro.algorithm.map.TunnelsMapMonitor;
+import metro.algorithm.metrics.MetricsSnapshot;
+import metro.algorithm.replay.EventLogWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A class defining an app simulating the concurrently working metro
@@ -20,79 +32,367 @@ public class SimulationModel {
     TunnelsMapMonitor monitor;
 
     /**
-     * Thread representing a train
+     * Trains of the simulation, indexed by train id
+     */
+    Train[] trains;
+
+    /**
+     * Executor running the trains
      */
-    Train[] trains = new Train[ModelParameters.NUMBER_OF_TRAINS];
+    ExecutorService executor;
 
     /**
-     * Array of enums representing the trains
+     * Writer of the event log, null if the simulation isn't recorded
      */
-    FieldTypes[] trainTypes = {FieldTypes.T1, FieldTypes.T2, FieldTypes.T3};
+    private EventLogWriter eventLog;
 
     /**
      * Initializes routes to the default values.
+     * Each train runs on its own platform thread.
      */
     public SimulationModel() {
+        this(new ModelParameters(), TrainExecutors.platformThreads());
+    }
+
+    /**
+     * Initializes routes to the given values.
+     * Each train runs on its own platform thread.
+     *
+     * @param routes an array of Coordinates pairs, specifying each route's start and end
+     *               e.g. For train 1 route routes[0][0] = start, route[0][1] = end
+     *               For train 2 route routes[1][0] = start, route[1][1] = end
+     *               The number of routes defines the number of trains.
+     */
+    public SimulationModel(Coordinates[][] routes) {
+        this(new ModelParameters(routes), TrainExecutors.platformThreads());
+    }
+
+    /**
+     * Initializes routes to the given values.
+     * The trains are run by the given executor, e.g. TrainExecutors.virtualThreads() for large fleets.
+     * The executor has to be able to run all the trains at the same time and is shut down by end().
+     *
+     * @param routes   an array of Coordinates pairs, specifying each route's start and end
+     * @param executor executor running the trains
+     * @see TrainExecutors
+     */
+    public SimulationModel(Coordinates[][] routes, ExecutorService executor) {
+        this(new ModelParameters(routes), executor);
+    }
+
+    /**
+     * Initializes the map and routes to the given values.
+     * The trains are run by the given executor, which is shut down by end().
+     *
+     * @param map      layout of the tunnels, e.g. loaded by TunnelsMapLoader
+     * @param routes   an array of Coordinates pairs, specifying each route's start and end
+     * @param executor executor running the trains
+     * @see metro.algorithm.map.TunnelsMapLoader
+     */
+    public SimulationModel(TunnelsMap map, Coordinates[][] routes, ExecutorService executor) {
+        this(new ModelParameters(map, routes), executor);
+    }
+
+    private SimulationModel(ModelParameters modelParams, ExecutorService executor) {
+        this(modelParams, executor, null);
+    }
+
+    /**
+     * @param checkpoint saved state of the trains, or null to start the trains at the beginning of their routes
+     * @throws IllegalArgumentException if the checkpoint doesn't match the shared segments of the routes
+     */
+    private SimulationModel(ModelParameters modelParams, ExecutorService executor, SimulationCheckpoint checkpoint) {
         // here we specify the parameters of the simulation
-        modelParams = new ModelParameters();
-        monitor = new TunnelsMapMonitor(modelParams.trains, modelParams.crossings);
+        this.modelParams = modelParams;
+        this.executor = executor;
+        monitor = new TunnelsMapMonitor(modelParams.getMap(), modelParams.trains, modelParams.crossings);
+        if (checkpoint != null && checkpoint.segmentOwners.length != monitor.getSegmentLock().getNumberOfSegments())
+            throw new IllegalArgumentException("The checkpoint has " + checkpoint.segmentOwners.length
+                    + " shared segments, the routes have " + monitor.getSegmentLock().getNumberOfSegments());
+        monitor.parkTrains();
+        startTrains(checkpoint);
+    }
 
-        for (int i = 0; i < trains.length; i++)
-            trains[i] = new Train(monitor, trainTypes[i], modelParams.trains[i], modelParams.crossings[i]);
+    /**
+     * Creates the trains of the current parameters and starts them, paused.
+     *
+     * @param checkpoint saved state of the trains, or null to start the trains at the beginning of their routes
+     */
+    private void startTrains(SimulationCheckpoint checkpoint) {
+        System.out.println("Shared segments: " + monitor.getSegmentLock());
+        System.out.println();
+        monitor.getMetrics().registerMBeans();
 
-        for (Thread t : trains)
-            t.start();
+        trains = new Train[modelParams.getNumberOfTrains()];
+        for (int i = 0; i < trains.length; i++) {
+            trains[i] = new Train(monitor, i, modelParams.crossings[i]);
+            if (checkpoint != null) {
+                trains[i].restore(checkpoint.crossingIndexes[i], checkpoint.moveForward[i], checkpoint.tiles[i],
+                        checkpoint.getHeldSegments(i));
+                monitor.setSleepTime(checkpoint.sleepTimes[i], i);
+            }
+        }
 
         // the simulation starts as paused (that way the startButton implementation is simpler
         pause();
+
+        for (Train t : trains)
+            executor.execute(t);
     }
 
     /**
-     * Initializes routes to the default values.
+     * Stops every train and waits until their tasks have ended, so no old train moves
+     * or holds a segment afterwards. The executor keeps running.
+     */
+    private void stopTrains() {
+        for (Train t : trains)
+            t.stop();
+        for (Train t : trains)
+            t.awaitFinished();
+    }
+
+    /**
+     * Replaces the trains with new ones on the given routes, like a new SimulationModel on the same map,
+     * but without creating a new monitor, new threads or, if the routes didn't change, new shared segments.
+     * The old trains are stopped and have released their segments before the new ones start.
+     * Listeners of the monitor stay registered. The recording is stopped and the simulation is paused.
      *
      * @param routes an array of Coordinates pairs, specifying each route's start and end
-     *               e.g. For train 1 route routes[0][0] = start, route[0][1] = end
-     *               For train 2 route routes[1][0] = start, route[1][1] = end
+     * @throws IllegalArgumentException if a route can't be planned or the trains at the starts of the routes would
+     *                                  hold back each other, the simulation doesn't change then
      */
-    public SimulationModel(Coordinates[][] routes) {
-        // here we specify the parameters of the simulation
-        modelParams = new ModelParameters(routes);
-        monitor = new TunnelsMapMonitor(modelParams.trains, modelParams.crossings);
+    public void reset(Coordinates[][] routes) {
+        reset(routes, getAdmissionMode());
+    }
 
-        for (int i = 0; i < trains.length; i++)
-            trains[i] = new Train(monitor, trainTypes[i], modelParams.trains[i], modelParams.crossings[i]);
+    /**
+     * Replaces the trains with new ones on the given routes, like reset(routes),
+     * and sets how the new trains are admitted into the shared parts of their routes.
+     *
+     * @param routes an array of Coordinates pairs, specifying each route's start and end
+     * @param mode   admission mode of the new trains
+     * @throws IllegalArgumentException if a route can't be planned or the trains at the starts of the routes would
+     *                                  hold back each other, the simulation doesn't change then
+     * @see AdmissionMode
+     */
+    public synchronized void reset(Coordinates[][] routes, AdmissionMode mode) {
+        ModelParameters newParams = new ModelParameters(modelParams.getMap(), routes);
+        // the new routes are checked before the old trains are stopped
+        SegmentLock segmentLock = Arrays.deepEquals(newParams.crossings, modelParams.crossings)
+                ? monitor.getSegmentLock() : monitor.createSegmentLock(newParams.crossings);
+        stopTrains();
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        monitor.getMetrics().unregisterMBeans();
 
-        for (Thread t : trains)
-            t.start();
+        double timeScale = getTimeScale();
+        modelParams = newParams;
+        monitor.reset(modelParams.trains, modelParams.crossings, segmentLock);
+        monitor.setAdmissionMode(mode);
+        monitor.parkTrains();
+        setTimeScale(timeScale);
+        startTrains(null);
+    }
 
-        // the simulation starts as paused (that way the startButton implementation is simpler
+    /**
+     * Saves the state of the simulation: the wagons, routes, directions and speeds of the trains and the owners
+     * of the shared segments. The simulation is paused and the state is saved once every train has stopped
+     * at its next tile. The simulation stays paused.
+     *
+     * @param file file the state is written to, replaced if it exists
+     * @throws IOException          if the file can't be written
+     * @throws InterruptedException if the current thread is interrupted while waiting for the trains to stop
+     * @throws IllegalStateException if the trains are admitted tile by tile, a checkpoint has one owner per segment
+     * @see #load(Path, TunnelsMap, ExecutorService)
+     */
+    public void save(Path file) throws IOException, InterruptedException {
+        if (getAdmissionMode() != AdmissionMode.SEGMENTS)
+            throw new IllegalStateException("Only simulations in the " + AdmissionMode.SEGMENTS + " admission mode can be saved");
         pause();
+        awaitStopped();
+
+        int numberOfTrains = trains.length;
+        Coordinates[][] wagons = new Coordinates[numberOfTrains][];
+        int[] crossingIndexes = new int[numberOfTrains];
+        boolean[] moveForward = new boolean[numberOfTrains];
+        int[] tiles = new int[numberOfTrains];
+        int[] sleepTimes = new int[numberOfTrains];
+        for (int i = 0; i < numberOfTrains; i++) {
+            TrainPosition position = monitor.getTrainPosition(i);
+            wagons[i] = new Coordinates[position.getLength()];
+            for (int j = 0; j < wagons[i].length; j++)
+                wagons[i][j] = monitor.coordinatesOf(position.getWagon(j));
+            crossingIndexes[i] = trains[i].getCrossing();
+            moveForward[i] = trains[i].isMovingForward();
+            // a train blocked on a segment hasn't left its crossing
+            tiles[i] = Math.max(0, monitor.getPauseGate().getWaitingTile(i));
+            sleepTimes[i] = monitor.getSleepTime(i);
+        }
+        SegmentLock segmentLock = monitor.getSegmentLock();
+        int[] segmentOwners = new int[segmentLock.getNumberOfSegments()];
+        for (int i = 0; i < segmentOwners.length; i++)
+            segmentOwners[i] = segmentLock.getOwner(i);
+
+        new SimulationCheckpoint(wagons, modelParams.crossings, crossingIndexes, moveForward, tiles, sleepTimes,
+                segmentOwners).write(file, monitor.getWidth(), monitor.getHeight());
     }
 
     /**
-     * Ends the simulation by interrupting its thread.
+     * Waits until no train of the paused simulation can move. A train can't move if it waits at the pause gate
+     * or if it's blocked on a segment held by a train that can't move, or held back by such a train waiting
+     * at the start of its route. The blocked train hasn't left its crossing
+     * yet, it's saved like a train waiting there and takes the segment again after the restart.
+     * <p>
+     * The state is checked again until no lock was released while checking it,
+     * so a blocked train can't have been let go by a train that stopped later.
+     *
+     * @throws InterruptedException  if the current thread is interrupted while waiting
+     * @throws IllegalStateException if a train has finished, so it will never stop
+     */
+    private void awaitStopped() throws InterruptedException {
+        SegmentLock segmentLock = monitor.getSegmentLock();
+        PauseGate pauseGate = monitor.getPauseGate();
+        boolean[] stopped = new boolean[trains.length];
+        while (true) {
+            long releases = segmentLock.getReleaseCount();
+            for (int i = 0; i < trains.length; i++) {
+                if (trains[i].isFinished())
+                    throw new IllegalStateException(trains[i].getName() + " has finished");
+                stopped[i] = pauseGate.getWaitingTile(i) >= 0;
+            }
+            // the blocked trains stop one after another, each waiting for a train stopped before
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = 0; i < trains.length; i++) {
+                    int segment = segmentLock.getAwaitedSegment(i);
+                    if (stopped[i] || segment < 0)
+                        continue;
+                    int owner = segmentLock.getOwner(segment);
+                    // a train waiting at the start of its route holds the segment back without owning it
+                    if (owner == TunnelsMapMonitor.NO_TRAIN)
+                        owner = segmentLock.getParkedTrain(segment);
+                    if (owner != TunnelsMapMonitor.NO_TRAIN && owner != i && stopped[owner]) {
+                        stopped[i] = true;
+                        changed = true;
+                    }
+                }
+            }
+            if (allTrue(stopped) && segmentLock.getReleaseCount() == releases)
+                return;
+            Thread.sleep(1);
+        }
+    }
+
+    private static boolean allTrue(boolean[] values) {
+        for (boolean value : values) {
+            if (!value)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Restores a simulation saved by save() on the default map. Each train runs on its own platform thread.
+     *
+     * @param file file written by save()
+     * @return the restored simulation, paused
+     * @throws IOException if the file can't be read or isn't a checkpoint of the default map
+     */
+    public static SimulationModel load(Path file) throws IOException {
+        return load(file, TunnelsMap.getDefault(), TrainExecutors.platformThreads());
+    }
+
+    /**
+     * Restores a simulation saved by save(). The trains continue from the crossings they stopped at,
+     * holding the shared segments they held. The routes aren't planned again.
+     *
+     * @param file     file written by save()
+     * @param map      layout of the tunnels the simulation ran on
+     * @param executor executor running the trains, shut down by end()
+     * @return the restored simulation, paused
+     * @throws IOException if the file can't be read or isn't a checkpoint of the map
+     */
+    public static SimulationModel load(Path file, TunnelsMap map, ExecutorService executor) throws IOException {
+        SimulationCheckpoint checkpoint = SimulationCheckpoint.read(file, map);
+        SimulationModel model;
+        try {
+            model = new SimulationModel(new ModelParameters(map, checkpoint.wagons, checkpoint.crossings),
+                    executor, checkpoint);
+        } catch (IllegalArgumentException e) {
+            executor.shutdownNow();
+            throw new IOException(file + " doesn't match its routes", e);
+        }
+        // the trains take their segments before they stop, so no other train can take them after a restart
+        try {
+            model.awaitStopped();
+        } catch (InterruptedException e) {
+            model.end();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring the trains");
+        }
+        return model;
+    }
+
+    /**
+     * Ends the simulation by interrupting the trains' threads.
      */
     public void end() {
-        for (Thread t : trains)
-            if (t != null)
-                t.interrupt();
+        stopTrains();
+        executor.shutdown();
+        monitor.getMetrics().unregisterMBeans();
+        try {
+            stopRecording();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Pauses the execution after the current train arrives at the station
+     * Starts recording every move of the trains and every change of the shared segments' owners to an event log,
+     * which can be replayed by SimulationReplay. Should be called while the simulation is paused.
+     *
+     * @param file file the events are written to, replaced if it exists
+     * @throws IOException if the file can't be written
+     * @see metro.algorithm.replay.SimulationReplay
      */
-    public void pause() {
-        for (Train t : trains) {
-            t.doPause();
+    public synchronized void startRecording(Path file) throws IOException {
+        stopRecording();
+        eventLog = new EventLogWriter(file, monitor, modelParams.crossings);
+    }
+
+    /**
+     * Stops the recording started by startRecording and closes the event log.
+     * Does nothing if the simulation isn't recorded.
+     *
+     * @throws IOException if the remaining events can't be written
+     */
+    public synchronized void stopRecording() throws IOException {
+        if (eventLog != null) {
+            try {
+                eventLog.close();
+            } finally {
+                eventLog = null;
+            }
         }
     }
 
+    /**
+     * Pauses the simulation, every train stops at its next tile.
+     * The trains share one pause gate, so the pause takes the same time for any number of trains.
+     */
+    public void pause() {
+        monitor.getPauseGate().close();
+    }
+
     /**
      * Restarts the simulation
      */
     public void restart() {
-        for (Train t : trains)
-            t.doRestart();
+        monitor.getPauseGate().open();
     }
 
     /**
@@ -104,18 +404,30 @@ public class SimulationModel {
         return monitor;
     }
 
+    /**
+     * Returns the current metrics of the trains and the shared segments: tiles moved, round trips, throughput,
+     * and the times the trains waited for and held the segments. The same metrics are exposed over JMX
+     * while the simulation runs.
+     *
+     * @return copy of the metrics
+     * @see MetricsSnapshot#getBottleneck()
+     */
+    public MetricsSnapshot getMetrics() {
+        return monitor.getMetrics().snapshot();
+    }
+
     /**
      * Returns number of trains in the simulation.
      *
-     * @return constant value specifying the number of trains in the simulation
+     * @return value specifying the number of trains in the simulation
      */
     public int getNumberOfTrains() {
-        return ModelParameters.NUMBER_OF_TRAINS;
+        return modelParams.getNumberOfTrains();
     }
 
 
     public Coordinates[] getRouteStarts() {
-        Coordinates[] starts = new Coordinates[ModelParameters.NUMBER_OF_TRAINS];
+        Coordinates[] starts = new Coordinates[getNumberOfTrains()];
         for (int i = 0; i < starts.length; i++)
             starts[i] = modelParams.crossings[i][0];
         return starts;
@@ -123,7 +435,7 @@ public class SimulationModel {
 
 
     public Coordinates[] getRouteEnds() {
-        Coordinates[] ends = new Coordinates[ModelParameters.NUMBER_OF_TRAINS];
+        Coordinates[] ends = new Coordinates[getNumberOfTrains()];
         for (int i = 0; i < ends.length; i++)
             ends[i] = modelParams.crossings[i][modelParams.crossings[i].length - 1];
         return ends;
@@ -132,14 +444,35 @@ public class SimulationModel {
     /**
      * Set the time a train waits after moving to the next tile
      *
-     * @param train     enum value identifying the train
+     * @param train     id of the train
      * @param sleepTime time in ms
      */
-    public void setSleepTime(FieldTypes train, int sleepTime) {
-        switch (train) {
-            case T1 -> trains[0].setSleepTime(sleepTime);
-            case T2 -> trains[1].setSleepTime(sleepTime);
-            case T3 -> trains[2].setSleepTime(sleepTime);
-        }
+    public void setSleepTime(int train, int sleepTime) {
+        trains[train].setSleepTime(sleepTime);
+    }
+
+    /**
+     * Sets the speed of the whole simulation, e.g. 10 runs it 10 times faster than real time.
+     * The sleep times of the trains are divided by the scale.
+     *
+     * @param timeScale number of simulated ms per real ms
+     * @throws IllegalArgumentException if the scale isn't positive
+     */
+    public void setTimeScale(double timeScale) {
+        monitor.getClock().setTimeScale(timeScale);
+    }
+
+    /**
+     * @return number of simulated ms per real ms
+     */
+    public double getTimeScale() {
+        return monitor.getClock().getTimeScale();
+    }
+
+    /**
+     * @return how the trains are admitted into the shared parts of their routes, set by reset()
+     */
+    public AdmissionMode getAdmissionMode() {
+        return monitor.getAdmissionMode();
     }
 }
@@ -2,30 +2,33 @@
 package metro.algorithm;
 
 import metro.algorithm.map.Coordinates;
-import metro.algorithm.map.FieldTypes;
 import metro.algorithm.map.TunnelsMapMonitor;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * Class representing a concurrent train in the metro
+ * Class representing a concurrent train in the metro.
+ * <p>
+ * The train is a task, so it can be run by a platform thread, a virtual thread or any other executor.
+ * It blocks only on java.util.concurrent locks and latches and on LockSupport.parkNanos,
+ * so it never pins the carrier of a virtual thread.
+ * <p>
+ * The trains are paused and restarted together by the pause gate of the monitor, see SimulationModel.pause().
+ *
+ * @see TrainExecutors
  */
-public class Train extends Thread {
-    private volatile boolean isPaused = true;
-
+public class Train implements Runnable {
     /**
-     * Object used to invoke wait and notify methods on this thread
+     * Name of the train used in the logs
      */
-    private final Object startPauseMonitor = new Object();
+    private final String name;
 
     /**
      * A monitor of the tunnels' map
      */
     private final TunnelsMapMonitor tunnelsMap;
 
-    /**
-     * Array of coordinates of this train's wagons.
-     * Each wagon is defined by its coordinate on the map
-     */
-    private final Coordinates[] wagons;
     /**
      * The route of this train.
      * The train moves forward and backward along this road.
@@ -36,81 +39,196 @@ public class Train extends Thread {
     /**
      * A variable defining current direction the train is headed to.
      */
-    private boolean moveForward = true;
+    private volatile boolean moveForward = true;
+
+    /**
+     * Index of the crossing of the route the train is leaving (or waiting at, while paused)
+     */
+    private volatile int crossing = 0;
 
     /**
-     * One of the FieldTypes enum values T1, T2, T3
+     * Tile of the corridor the train starts at, when it's restored inside the corridor
      */
-    private final FieldTypes trainType;
+    private int firstTile = 0;
 
     /**
-     * @param monitor   Monitor of the tunnel's map.
-     * @param trainType one of the T1, T2, T3 values of enum FieldTypes
-     * @param wagons    array of Coordinates defining the individual wagons of the train.
-     * @param route     array of Coordinates defining the route the train is supposed to take
+     * Shared segments the train takes before it starts, when it's restored inside a shared part of its route
+     */
+    private int[] heldSegments = new int[0];
+
+    /**
+     * Guards the thread running the train, so it's interrupted only while it runs the train
+     */
+    private final ReentrantLock runnerLock = new ReentrantLock();
+    /**
+     * Thread running the train, null before it starts and after it ends
+     */
+    private Thread runner;
+    /**
+     * Set by stop(), ends the train's task even if it hasn't started yet
      */
-    public Train(TunnelsMapMonitor monitor, FieldTypes trainType, Coordinates[] wagons, Coordinates[] route) {
-        super(trainType.toString());
-        this.wagons = wagons;
+    private boolean stopRequested = false;
+    /**
+     * Released when the train's task has ended
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Id of this train, used as its index in the simulation's arrays
+     */
+    private final int trainId;
+
+    /**
+     * @param monitor Monitor of the tunnel's map.
+     * @param trainId id of this train, its wagons are kept by the monitor
+     * @param route   array of Coordinates defining the route the train is supposed to take
+     */
+    public Train(TunnelsMapMonitor monitor, int trainId, Coordinates[] route) {
+        this.name = "T" + (trainId + 1);
         this.tunnelsMap = monitor;
-        this.trainType = trainType;
+        this.trainId = trainId;
         this.route = route;
     }
 
+    /**
+     * Sets the state of the train saved by a checkpoint. Has to be called before the train is run.
+     *
+     * @param crossing     index of the crossing of the route the train is leaving
+     * @param moveForward  direction the train is heading
+     * @param tile         index of the tile of the corridor the train moves to next, 0 at the crossing
+     * @param heldSegments shared segments the train holds, taken by the train when it starts
+     * @see SimulationModel#save(java.nio.file.Path)
+     */
+    void restore(int crossing, boolean moveForward, int tile, int[] heldSegments) {
+        this.crossing = crossing;
+        this.moveForward = moveForward;
+        this.firstTile = tile;
+        this.heldSegments = heldSegments.clone();
+    }
+
     @Override
     public void run() {
+        runnerLock.lock();
         try {
+            if (stopRequested) {
+                finished.countDown();
+                return;
+            }
+            runner = Thread.currentThread();
+        } finally {
+            runnerLock.unlock();
+        }
+
+        try {
+            tunnelsMap.getSegmentLock().lockSegments(trainId, heldSegments);
+            tunnelsMap.getClock().resynchronize(trainId);
+            int tile = firstTile;
             while (true) {
-                if (moveForward) {
-                    for (int i = 0; i < route.length - 1; i++) {
-                        checkPause();
-                        tunnelsMap.moveToNextCrossing(route[i], route[i + 1], wagons, trainType, moveForward);
-                    }
-                } else {
-                    for (int i = route.length - 1; i > 0; i--) {
-                        checkPause();
-                        tunnelsMap.moveToNextCrossing(route[i], route[i - 1], wagons, trainType, moveForward);
-                    }
+                int next = moveForward ? crossing + 1 : crossing - 1;
+                if (next < 0 || next >= route.length) {
+                    // after getting to the destination, the train turns around and goes back
+                    moveForward = !moveForward;
+                    if (moveForward)
+                        tunnelsMap.getMetrics().getTrain(trainId).roundTripCompleted();
+                    continue;
                 }
-                // after getting to the destination, the train turns around and goes back
-                moveForward = !moveForward;
+                // if the simulation is paused, the train has to wait
+                if (tunnelsMap.getPauseGate().pass(trainId, tile))
+                    tunnelsMap.getClock().resynchronize(trainId);
+                tunnelsMap.moveToNextCrossing(route[crossing], route[next], trainId, moveForward, tile);
+                crossing = next;
+                tile = 0;
             }
         } catch (InterruptedException e) {
-            System.out.println(getName() + ": Interrupted");
+            // stop() interrupts the train whenever the simulation is reset or ended, that's not worth a message
+            if (!isStopRequested())
+                System.out.println(name + ": Interrupted");
+        } finally {
+            // the locks can be released only by their owner, so the train releases them before it ends
+            tunnelsMap.getSegmentLock().releaseSegments(trainId);
+            tunnelsMap.releaseTiles(trainId);
+            runnerLock.lock();
+            try {
+                runner = null;
+                // a pooled thread doesn't carry the interrupt to its next task
+                Thread.interrupted();
+            } finally {
+                runnerLock.unlock();
+            }
+            finished.countDown();
         }
     }
 
     /**
-     * Starts waiting if isPaused is set.
-     *
-     * @throws InterruptedException may throw exception while waiting
-     */
-    private void checkPause() throws InterruptedException {
-        // if the program is paused, the train has to wait
-        synchronized (startPauseMonitor) {
-            if (isPaused) {
-                System.out.println(Thread.currentThread().getName() + ": Thread paused");
-                startPauseMonitor.wait();
+     * Ends the train's task: interrupts the thread running it, or makes the task end as soon as it starts.
+     * Use awaitFinished() to wait until it has ended.
+     */
+    void stop() {
+        runnerLock.lock();
+        try {
+            stopRequested = true;
+            if (runner != null)
+                runner.interrupt();
+        } finally {
+            runnerLock.unlock();
+        }
+    }
+
+    private boolean isStopRequested() {
+        runnerLock.lock();
+        try {
+            return stopRequested;
+        } finally {
+            runnerLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the train's task has ended and the train has released its segments.
+     * The wait isn't interrupted, the interrupt status of the current thread is kept.
+     */
+    void awaitFinished() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     /**
-     * Pauses the execution of the program
+     * Returns the name of this train.
+     *
+     * @return name of the train, e.g. T1
      */
-    public void doPause() {
-        isPaused = true;
+    public String getName() {
+        return name;
     }
 
     /**
-     * Continues the execution of the thread.
-     * If the thread is already running, nothing happens
+     * @return true if the train's task has ended, so it will never move again
      */
-    public void doRestart() {
-        synchronized (startPauseMonitor) {
-            isPaused = false;
-            startPauseMonitor.notify();
-        }
+    boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * @return index of the crossing of the route the train is leaving, or waiting at while it's stopped
+     */
+    int getCrossing() {
+        return crossing;
+    }
+
+    /**
+     * @return direction the train is heading
+     */
+    boolean isMovingForward() {
+        return moveForward;
     }
 
     /**
@@ -119,6 +237,6 @@ public class Train extends Thread {
      * @param sleepTime time in ms
      */
     public void setSleepTime(int sleepTime) {
-        tunnelsMap.setSleepTime(sleepTime, trainType);
+        tunnelsMap.setSleepTime(sleepTime, trainId);
     }
 }
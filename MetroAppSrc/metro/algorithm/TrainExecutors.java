@@ -0,0 +1,58 @@
+package metro.algorithm;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory of executors running the trains of a SimulationModel.
+ * <p>
+ * Every train runs its own loop, so the executor has to run all of them at the same time.
+ * Platform threads are fine for a few trains, virtual threads let the simulation run thousands of them.
+ *
+ * @see Train
+ * @see SimulationModel
+ */
+public final class TrainExecutors {
+    private TrainExecutors() {
+    }
+
+    /**
+     * Creates an executor running each train on its own platform thread.
+     *
+     * @return new executor
+     */
+    public static ExecutorService platformThreads() {
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Creates an executor running each train on its own virtual thread.
+     * <p>
+     * The project is compiled for an older Java version, so the executor is looked up at runtime.
+     *
+     * @return new executor
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads (Java 21 or newer required)
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM", e);
+        }
+    }
+
+    /**
+     * Checks if the current JVM can run the trains on virtual threads.
+     *
+     * @return true if virtualThreads() can be used
+     */
+    public static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package metro.algorithm.map;
+
+/**
+ * How the trains are admitted into the shared parts of their routes.
+ *
+ * @see TunnelsMapMonitor#setAdmissionMode(AdmissionMode)
+ */
+public enum AdmissionMode {
+    /**
+     * A train takes the whole shared stretch of its route, so no other train enters it until the train has left.
+     */
+    SEGMENTS,
+    /**
+     * Trains moving the same way through a shared stretch take it together and follow each other tile by tile.
+     * Every train reserves the tiles its wagons are on and the next tiles ahead, as many as it has wagons,
+     * in a TileReservations table, so two trains never share a tile. Trains moving the other way, crossing
+     * the stretch or turning around in it still take it alone, so the trains can't block each other.
+     */
+    TILES
+}
@@ -0,0 +1,73 @@
+package metro.algorithm.map;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of the tiles changed since they were last collected by the reader.
+ * <p>
+ * The tiles are marked in a bitmap, one bit per tile. A second, smaller bitmap marks the words of the first one
+ * with any bit set, so collecting the changes only visits the words that have them.
+ * Any number of trains can mark the tiles at the same time, the changes are collected by one reader.
+ */
+class ChangedCells {
+    private static final int BITS = Long.SIZE;
+
+    /**
+     * One bit per tile
+     */
+    private final AtomicLongArray cells;
+    /**
+     * One bit per word of the cells bitmap, set when the word may have bits set
+     */
+    private final AtomicLongArray words;
+
+    /**
+     * @param size number of tiles
+     */
+    ChangedCells(int size) {
+        cells = new AtomicLongArray((size + BITS - 1) / BITS);
+        words = new AtomicLongArray((cells.length() + BITS - 1) / BITS);
+    }
+
+    /**
+     * Marks the tile as changed.
+     *
+     * @param cell packed index of the tile
+     */
+    void mark(int cell) {
+        int word = cell / BITS;
+        long bit = 1L << (cell % BITS);
+        if ((cells.get(word) & bit) != 0)
+            return;
+        long previous = cells.getAndAccumulate(word, bit, (value, mask) -> value | mask);
+        // the first bit of the word marks the word, the next ones find it already marked
+        if (previous == 0) {
+            long wordBit = 1L << (word % BITS);
+            words.getAndAccumulate(word / BITS, wordBit, (value, mask) -> value | mask);
+        }
+    }
+
+    /**
+     * Passes every changed tile to the consumer and clears the set.
+     * The tiles changed while collecting are passed now or left for the next call.
+     *
+     * @param consumer receives the packed indexes of the tiles
+     */
+    void drain(IntConsumer consumer) {
+        for (int w = 0; w < words.length(); w++) {
+            if (words.get(w) == 0)
+                continue;
+            long markedWords = words.getAndSet(w, 0);
+            while (markedWords != 0) {
+                int word = w * BITS + Long.numberOfTrailingZeros(markedWords);
+                markedWords &= markedWords - 1;
+                long bits = cells.getAndSet(word, 0);
+                while (bits != 0) {
+                    consumer.accept(word * BITS + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package metro.algorithm.map;
+
+import java.util.Arrays;
+
+/**
+ * The tunnels of a map compressed into a graph of crossings.
+ * <p>
+ * The nodes are the tiles where a train can change its direction: junctions, corners and dead ends.
+ * The edges are the straight corridors between them, weighted by their length in tiles.
+ * Every other tile lies inside exactly one corridor, so a route only has to list the nodes it passes.
+ * <p>
+ * Everything is stored in primitive arrays: the cells of the nodes (sorted, so a node is found by binary search)
+ * and the edges of each node in a compressed adjacency list.
+ *
+ * @see Router
+ */
+public class CrossingGraph {
+    /**
+     * Changes of the row and column for the four directions: up, right, down, left
+     */
+    private static final int[] ROW_STEPS = {-1, 0, 1, 0};
+    private static final int[] COL_STEPS = {0, 1, 0, -1};
+
+    private final TunnelsMap map;
+    private final int width;
+    private final int height;
+
+    /**
+     * Packed cell indexes of the nodes, in ascending order. The index in this array is the node's id.
+     */
+    private final int[] nodeCells;
+    /**
+     * Edges of the node n are edgeTargets[edgeStarts[n]] ... edgeTargets[edgeStarts[n + 1] - 1]
+     */
+    private final int[] edgeStarts;
+    /**
+     * Node each edge leads to
+     */
+    private final int[] edgeTargets;
+    /**
+     * Length of each edge in tiles
+     */
+    private final int[] edgeLengths;
+
+    /**
+     * Builds the graph of the map's tunnels.
+     *
+     * @param map layout of the tunnels
+     */
+    public CrossingGraph(TunnelsMap map) {
+        this.map = map;
+        width = map.getWidth();
+        height = map.getHeight();
+
+        int nodes = 0;
+        int edges = 0;
+        int[] cells = new int[16];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                if (isNode(row, col)) {
+                    if (nodes == cells.length)
+                        cells = Arrays.copyOf(cells, nodes * 2);
+                    cells[nodes++] = row * width + col;
+                    edges += countExits(row, col);
+                }
+            }
+        }
+        nodeCells = Arrays.copyOf(cells, nodes);
+
+        edgeStarts = new int[nodes + 1];
+        edgeTargets = new int[edges];
+        edgeLengths = new int[edges];
+        int edge = 0;
+        for (int node = 0; node < nodes; node++) {
+            edgeStarts[node] = edge;
+            int row = nodeCells[node] / width;
+            int col = nodeCells[node] % width;
+            for (int direction = 0; direction < ROW_STEPS.length; direction++) {
+                if (!isPassable(row + ROW_STEPS[direction], col + COL_STEPS[direction]))
+                    continue;
+                int length = 0;
+                int r = row, c = col;
+                do {
+                    r += ROW_STEPS[direction];
+                    c += COL_STEPS[direction];
+                    length++;
+                } while (!isNode(r, c));
+                edgeTargets[edge] = getNode(r * width + c);
+                edgeLengths[edge] = length;
+                edge++;
+            }
+        }
+        edgeStarts[nodes] = edge;
+    }
+
+    /**
+     * Checks if the trains can move across the tile.
+     *
+     * @return true for empty tiles inside the map
+     */
+    private boolean isPassable(int row, int col) {
+        return row >= 0 && row < height && col >= 0 && col < width && map.getField(row, col) == FieldTypes.EMPTY;
+    }
+
+    /**
+     * Checks if the tile is a node: a passable tile which doesn't have exactly two opposite passable neighbours.
+     */
+    private boolean isNode(int row, int col) {
+        if (!isPassable(row, col))
+            return false;
+        boolean vertical = isPassable(row - 1, col) && isPassable(row + 1, col);
+        boolean horizontal = isPassable(row, col - 1) && isPassable(row, col + 1);
+        return countExits(row, col) != 2 || vertical == horizontal;
+    }
+
+    private int countExits(int row, int col) {
+        int exits = 0;
+        for (int direction = 0; direction < ROW_STEPS.length; direction++) {
+            if (isPassable(row + ROW_STEPS[direction], col + COL_STEPS[direction]))
+                exits++;
+        }
+        return exits;
+    }
+
+    /**
+     * Returns the node on the given tile.
+     *
+     * @param cell packed cell index
+     * @return id of the node or a negative value if the tile is not a node
+     */
+    public int getNode(int cell) {
+        return Arrays.binarySearch(nodeCells, cell);
+    }
+
+    /**
+     * Finds the two nodes at the ends of the corridor the given tile lies in.
+     *
+     * @param cell packed index of a passable tile that isn't a node
+     * @return {first node, distance to it, second node, distance to it}
+     */
+    int[] getCorridorEnds(int cell) {
+        int row = cell / width;
+        int col = cell % width;
+        int[] ends = new int[4];
+        int found = 0;
+        for (int direction = 0; direction < ROW_STEPS.length; direction++) {
+            if (!isPassable(row + ROW_STEPS[direction], col + COL_STEPS[direction]))
+                continue;
+            int distance = 0;
+            int r = row, c = col;
+            do {
+                r += ROW_STEPS[direction];
+                c += COL_STEPS[direction];
+                distance++;
+            } while (!isNode(r, c));
+            ends[found++] = getNode(r * width + c);
+            ends[found++] = distance;
+        }
+        return ends;
+    }
+
+    /**
+     * Checks if the trains can move across the tile.
+     *
+     * @param cell packed cell index
+     * @return true for empty tiles
+     */
+    public boolean isPassable(int cell) {
+        return cell >= 0 && cell < width * height && map.getField(cell) == FieldTypes.EMPTY;
+    }
+
+    public int getNodeCount() {
+        return nodeCells.length;
+    }
+
+    public int getNodeCell(int node) {
+        return nodeCells[node];
+    }
+
+    /**
+     * @param node id of the node
+     * @return index of the first edge of the node
+     */
+    public int getFirstEdge(int node) {
+        return edgeStarts[node];
+    }
+
+    /**
+     * @param node id of the node
+     * @return index after the last edge of the node
+     */
+    public int getEndEdge(int node) {
+        return edgeStarts[node + 1];
+    }
+
+    public int getEdgeCount() {
+        return edgeTargets.length;
+    }
+
+    public int getEdgeTarget(int edge) {
+        return edgeTargets[edge];
+    }
+
+    public int getEdgeLength(int edge) {
+        return edgeLengths[edge];
+    }
+
+    /**
+     * Finds the edge between two nodes.
+     *
+     * @param from id of the first node
+     * @param to   id of the second node
+     * @return index of the edge or -1 if the nodes aren't neighbours
+     */
+    public int findEdge(int from, int to) {
+        for (int edge = edgeStarts[from]; edge < edgeStarts[from + 1]; edge++) {
+            if (edgeTargets[edge] == to)
+                return edge;
+        }
+        return -1;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
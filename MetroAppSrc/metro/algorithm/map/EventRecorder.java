@@ -0,0 +1,34 @@
+package metro.algorithm.map;
+
+/**
+ * Receives every move of a train and every change of the owner of a shared segment, e.g. to log them.
+ * <p>
+ * It's called by the thread moving the train, so it has to return quickly and must not block the train.
+ *
+ * @see TunnelsMapMonitor#setEventRecorder(EventRecorder)
+ */
+public interface EventRecorder {
+    /**
+     * Called after the head of a train has moved to the given tile.
+     *
+     * @param train id of the train
+     * @param cell  packed index of the tile (row * width + col)
+     */
+    void trainMoved(int train, int cell);
+
+    /**
+     * Called after a train has taken a shared segment.
+     *
+     * @param train   id of the train
+     * @param segment position of the segment in the global order of the segments
+     */
+    void segmentAcquired(int train, int segment);
+
+    /**
+     * Called before a train releases a shared segment.
+     *
+     * @param train   id of the train
+     * @param segment position of the segment in the global order of the segments
+     */
+    void segmentReleased(int train, int segment);
+}
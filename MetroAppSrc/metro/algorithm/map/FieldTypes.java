@@ -2,12 +2,12 @@ package metro.algorithm.map;
 
 /**
  * Enum specifying the possible field values on the tunnel's map.
+ * <p>
+ * Fields taken by a train are marked as TRAIN. The id of the train can be read via TunnelsMapMonitor.getOccupant().
  */
 public enum FieldTypes {
     EMPTY,
     WALL,
     STATION,
-    T1,
-    T2,
-    T3
+    TRAIN
 }
@@ -0,0 +1,16 @@
+package metro.algorithm.map;
+
+/**
+ * Listener notified by TunnelsMapMonitor every time a train moves.
+ * <p>
+ * It's called by the thread moving the train, right after the move, so it should only schedule the work
+ * (e.g. a repaint) and return.
+ *
+ * @see TunnelsMapMonitor#addChangeListener(MapChangeListener)
+ */
+public interface MapChangeListener {
+    /**
+     * Called after a train has moved to the next tile.
+     */
+    void mapChanged();
+}
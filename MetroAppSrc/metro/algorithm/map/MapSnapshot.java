@@ -0,0 +1,117 @@
+package metro.algorithm.map;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable copy of the trains' positions on the map, published by TunnelsMapMonitor.snapshot().
+ * <p>
+ * The snapshot is copied without blocking the trains, so the readers (the GUI, exporters, metrics)
+ * never stall them. Its version tells the readers if the map changed since their previous snapshot.
+ * <p>
+ * The arrays of the snapshots are reused: a snapshot has to be closed when it's no longer read,
+ * then its array can hold one of the next snapshots. A reader taking a snapshot after every change
+ * only ever uses two arrays: the one it reads and the one being filled.
+ *
+ * @see TunnelsMapMonitor#snapshot()
+ */
+public final class MapSnapshot implements AutoCloseable {
+    private final int width;
+    private final int height;
+    private final long version;
+
+    /**
+     * Ids of the trains occupying the tiles (row * width + col), or NO_TRAIN
+     */
+    private final int[] occupants;
+
+    /**
+     * Arrays of the closed snapshots, ready to be filled again
+     */
+    private final Queue<int[]> pool;
+
+    /**
+     * Number of readers of the snapshot, including the monitor while it's the latest one
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    MapSnapshot(int width, int height, long version, int[] occupants, Queue<int[]> pool) {
+        this.width = width;
+        this.height = height;
+        this.version = version;
+        this.occupants = occupants;
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a reader of the snapshot, unless every reader has already closed it.
+     *
+     * @return true if the snapshot can still be read
+     */
+    boolean retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0)
+                return false;
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Releases the snapshot. After the last reader closes it, its array is reused by the next snapshots.
+     */
+    @Override
+    public void close() {
+        if (references.decrementAndGet() == 0)
+            pool.offer(occupants);
+    }
+
+    /**
+     * Returns the version of the map's state in the snapshot.
+     * The versions grow with every move of a train, equal versions mean equal states.
+     *
+     * @return version of the state
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the train occupying the tile.
+     *
+     * @param cell packed index of the tile (row * width + col)
+     * @return id of the train or TunnelsMapMonitor.NO_TRAIN
+     */
+    public int getOccupant(int cell) {
+        return occupants[cell];
+    }
+
+    /**
+     * Returns the train occupying the tile.
+     *
+     * @param row row of the tile
+     * @param col column of the tile
+     * @return id of the train or TunnelsMapMonitor.NO_TRAIN
+     */
+    public int getOccupant(int row, int col) {
+        return occupants[row * width + col];
+    }
+
+    /**
+     * Copies the snapshot to the given array.
+     *
+     * @param target array of at least width * height elements
+     */
+    public void copyTo(int[] target) {
+        System.arraycopy(occupants, 0, target, 0, width * height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,192 @@
+package metro.algorithm.map;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Grid holding the id of the train occupying each tile of the map.
+ * <p>
+ * Tiles are stored in a flat array (index = row * width + col) and updated atomically,
+ * so trains moving in different parts of the map never wait for each other.
+ * <p>
+ * The rows are divided into stripes. Writers mark the stripes they're changing by incrementing its
+ * writesStarted counter before the change and writesFinished after. A reader copying a stripe knows the copy
+ * is consistent if no writer was active when it started and no writer started until it finished (a seqlock
+ * that allows many writers at once).
+ */
+class OccupancyGrid {
+    /**
+     * Value of the tiles without a train
+     */
+    static final int NO_TRAIN = -1;
+
+    /**
+     * Number of rows guarded by one pair of counters
+     */
+    private static final int ROWS_PER_STRIPE = 4;
+
+    /**
+     * Number of attempts to copy the whole grid at once before falling back to copying stripe by stripe
+     */
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+    private final int width;
+    private final int height;
+    private final AtomicIntegerArray cells;
+    private final AtomicLongArray writesStarted;
+    private final AtomicLongArray writesFinished;
+
+    /**
+     * Creates a grid without trains.
+     *
+     * @param width  number of columns
+     * @param height number of rows
+     */
+    OccupancyGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        cells = new AtomicIntegerArray(width * height);
+        for (int i = 0; i < cells.length(); i++)
+            cells.set(i, NO_TRAIN);
+        int stripes = (height + ROWS_PER_STRIPE - 1) / ROWS_PER_STRIPE;
+        writesStarted = new AtomicLongArray(stripes);
+        writesFinished = new AtomicLongArray(stripes);
+    }
+
+    /**
+     * Returns the id of the train on the tile.
+     *
+     * @param cell packed index of the tile (row * width + col)
+     * @return id of the train or NO_TRAIN
+     */
+    int get(int cell) {
+        return cells.get(cell);
+    }
+
+    /**
+     * Marks the tile as occupied by the train. Should be surrounded by beginWrite and endWrite.
+     *
+     * @param cell  packed index of the tile
+     * @param train id of the train
+     */
+    void set(int cell, int train) {
+        cells.set(cell, train);
+    }
+
+    /**
+     * Marks the tile as empty, but only if it's occupied by the given train.
+     * Should be surrounded by beginWrite and endWrite.
+     *
+     * @param cell  packed index of the tile
+     * @param train id of the train leaving the tile
+     */
+    void clear(int cell, int train) {
+        cells.compareAndSet(cell, train, NO_TRAIN);
+    }
+
+    /**
+     * Announces a change of the given row to the readers.
+     * Every call has to be matched by an endWrite call for the same row.
+     *
+     * @param row row that is going to be changed
+     */
+    void beginWrite(int row) {
+        writesStarted.incrementAndGet(row / ROWS_PER_STRIPE);
+    }
+
+    /**
+     * Ends the change announced by beginWrite.
+     *
+     * @param row row that was changed
+     */
+    void endWrite(int row) {
+        writesFinished.incrementAndGet(row / ROWS_PER_STRIPE);
+    }
+
+    /**
+     * Copies the grid to the given array without blocking the writers.
+     * <p>
+     * The copy is consistent as a whole if the writers let it, otherwise every stripe is consistent on its own.
+     *
+     * @param target array of at least width * height elements
+     * @return version of the copied state: the number of changes started before the copy
+     */
+    long copyTo(int[] target) {
+        int stripes = writesStarted.length();
+        long[] versions = new long[stripes];
+
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            boolean quiet = true;
+            long version = 0;
+            for (int s = 0; s < stripes && quiet; s++) {
+                versions[s] = writesStarted.get(s);
+                quiet = writesFinished.get(s) == versions[s];
+                version += versions[s];
+            }
+            if (!quiet) {
+                Thread.onSpinWait();
+                continue;
+            }
+            copyRows(target, 0, height);
+            boolean unchanged = true;
+            for (int s = 0; s < stripes && unchanged; s++)
+                unchanged = writesStarted.get(s) == versions[s];
+            if (unchanged)
+                return version;
+        }
+
+        long version = 0;
+        for (int s = 0; s < stripes; s++)
+            version += copyStripe(target, s);
+        return version;
+    }
+
+    /**
+     * Returns the version of the current state of the grid.
+     * It grows with every change, so two equal versions mean the grid didn't change between them.
+     *
+     * @return number of changes started so far, or -1 if a change is in progress
+     */
+    long getVersion() {
+        long version = 0;
+        for (int s = 0; s < writesStarted.length(); s++) {
+            long started = writesStarted.get(s);
+            if (writesFinished.get(s) != started)
+                return -1;
+            version += started;
+        }
+        return version;
+    }
+
+    /**
+     * Copies one stripe, retrying until no writer changes it during the copy.
+     *
+     * @return version of the copied stripe
+     */
+    private long copyStripe(int[] target, int stripe) {
+        int fromRow = stripe * ROWS_PER_STRIPE;
+        int toRow = Math.min(fromRow + ROWS_PER_STRIPE, height);
+        while (true) {
+            long version = writesStarted.get(stripe);
+            if (writesFinished.get(stripe) == version) {
+                copyRows(target, fromRow, toRow);
+                if (writesStarted.get(stripe) == version)
+                    return version;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private void copyRows(int[] target, int fromRow, int toRow) {
+        for (int i = fromRow * width; i < toRow * width; i++)
+            target[i] = cells.get(i);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,92 @@
+package metro.algorithm.map;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Gate the trains of a threaded simulation pass before every tile, closed while the simulation is paused.
+ * <p>
+ * While the gate is open, passing it costs one volatile read. Closing or opening it takes the same time
+ * for any number of trains: the stopped trains wait on one shared latch, and opening the gate releases the latch,
+ * which wakes the trains one after another. A train stops at the next tile, not at the next crossing.
+ * <p>
+ * The gate also remembers where each stopped train waits, so a paused simulation can be saved.
+ *
+ * @see TunnelsMapMonitor#moveToNextCrossing(Coordinates, Coordinates, int, boolean)
+ */
+public class PauseGate {
+    /**
+     * Latch the trains wait on while the gate is closed, null while it's open
+     */
+    private final AtomicReference<CountDownLatch> closed = new AtomicReference<>();
+
+    /**
+     * Tile of its corridor each train waits at, or -1 if it doesn't wait, indexed by train id
+     */
+    private final AtomicIntegerArray waitingTiles;
+
+    /**
+     * @param trains number of trains
+     */
+    PauseGate(int trains) {
+        waitingTiles = new AtomicIntegerArray(trains);
+        for (int i = 0; i < trains; i++)
+            waitingTiles.set(i, -1);
+    }
+
+    /**
+     * Closes the gate, so every train stops at its next tile. Does nothing if it's already closed.
+     */
+    public void close() {
+        closed.compareAndSet(null, new CountDownLatch(1));
+    }
+
+    /**
+     * Opens the gate and lets the stopped trains go. Does nothing if it's already open.
+     */
+    public void open() {
+        CountDownLatch latch = closed.getAndSet(null);
+        if (latch != null)
+            latch.countDown();
+    }
+
+    /**
+     * @return true if the trains stop at the gate
+     */
+    public boolean isClosed() {
+        return closed.get() != null;
+    }
+
+    /**
+     * Passes the gate, waiting until it's opened if it's closed.
+     *
+     * @param train id of the train
+     * @param tile  index of the tile of the corridor the train moves to next, 0 if it's at a crossing
+     * @return true if the train had to wait
+     * @throws InterruptedException if the train is interrupted while waiting
+     */
+    public boolean pass(int train, int tile) throws InterruptedException {
+        CountDownLatch latch = closed.get();
+        if (latch == null)
+            return false;
+        waitingTiles.set(train, tile);
+        try {
+            latch.await();
+        } finally {
+            waitingTiles.set(train, -1);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tile the train waits at. The train doesn't move until the gate is opened.
+     *
+     * @param train id of the train
+     * @return index of the tile of its corridor the train moves to next, 0 at a crossing,
+     * or -1 if the train doesn't wait at the gate
+     */
+    public int getWaitingTile(int train) {
+        return waitingTiles.get(train);
+    }
+}
@@ -0,0 +1,96 @@
+package metro.algorithm.map;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index of the trains' routes: the trains passing through each crossing.
+ * <p>
+ * Everything is stored in primitive arrays, like in CrossingGraph: the cells of the crossings of all the routes
+ * (sorted, so a crossing is found by binary search) and the trains of each crossing in a compressed list.
+ * A route is then compared only with the routes it meets, instead of with every other route.
+ *
+ * @see TunnelsMapMonitor#cellOf(Coordinates)
+ */
+class RouteIndex {
+    /**
+     * Packed cell indexes of the crossings of all the routes, in ascending order.
+     * The index in this array is the crossing's id.
+     */
+    private final int[] crossingCells;
+    /**
+     * Trains of the crossing c are trains[trainStarts[c]] ... trains[trainStarts[c + 1] - 1], in ascending order
+     */
+    private final int[] trainStarts;
+    private final int[] trains;
+
+    /**
+     * @param routeCells packed cell indexes of the crossings of every route, indexed by train id
+     */
+    RouteIndex(int[][] routeCells) {
+        int size = 0;
+        for (int[] cells : routeCells)
+            size += cells.length;
+        // the cell in the high half and the train in the low half, so the entries are sorted by the cell, then the train
+        long[] entries = new long[size];
+        size = 0;
+        for (int train = 0; train < routeCells.length; train++) {
+            for (int cell : routeCells[train])
+                entries[size++] = (long) cell << 32 | train;
+        }
+        Arrays.parallelSort(entries);
+
+        int[] cells = new int[size];
+        int[] starts = new int[size + 1];
+        int[] entryTrains = new int[size];
+        int crossings = 0;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            // a route passing through a crossing twice is listed once
+            if (i > 0 && entries[i] == entries[i - 1])
+                continue;
+            int cell = (int) (entries[i] >>> 32);
+            if (crossings == 0 || cells[crossings - 1] != cell) {
+                cells[crossings] = cell;
+                starts[crossings++] = count;
+            }
+            entryTrains[count++] = (int) entries[i];
+        }
+        starts[crossings] = count;
+
+        crossingCells = Arrays.copyOf(cells, crossings);
+        trainStarts = Arrays.copyOf(starts, crossings + 1);
+        trains = Arrays.copyOf(entryTrains, count);
+    }
+
+    /**
+     * @param cell packed index of the tile
+     * @return id of the crossing, or a negative value if no route passes through the tile
+     */
+    int findCrossing(int cell) {
+        return Arrays.binarySearch(crossingCells, cell);
+    }
+
+    /**
+     * @param crossing id of the crossing
+     * @return position of the first train of the crossing
+     */
+    int getFirstTrain(int crossing) {
+        return trainStarts[crossing];
+    }
+
+    /**
+     * @param crossing id of the crossing
+     * @return position after the last train of the crossing
+     */
+    int getEndTrain(int crossing) {
+        return trainStarts[crossing + 1];
+    }
+
+    /**
+     * @param position position between getFirstTrain() and getEndTrain() of a crossing
+     * @return id of the train
+     */
+    int getTrain(int position) {
+        return trains[position];
+    }
+}
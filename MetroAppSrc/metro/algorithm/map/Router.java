@@ -0,0 +1,439 @@
+package metro.algorithm.map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Finds the shortest routes between the tiles of a map.
+ * <p>
+ * The routes are searched with A* on the crossing graph, with the Manhattan distance as the heuristic.
+ * A route is an array of the crossings the train passes, each one in the same row or column as the previous one,
+ * the same way the trains' routes are defined in ModelParameters.
+ * <p>
+ * For maps with up to ALL_PAIRS_LIMIT crossings, the next hop of the shortest route between every pair of crossings
+ * is computed once, when the router is created, and stored in a byte per pair. A shortest route is then only
+ * a walk through the table. On larger maps the shortest routes are searched when needed.
+ * Either way, the shortest routes are cached per (start, end) pair.
+ * Routes planned with the congestion of other routes taken into account depend on that congestion,
+ * so they are always searched.
+ *
+ * @see CrossingGraph
+ */
+public class Router {
+    /**
+     * Maximal number of crossings of a map with the table of next hops (the table takes the square of it in bytes)
+     */
+    public static final int ALL_PAIRS_LIMIT = 2048;
+
+    /**
+     * Value of the next hops' table for pairs of crossings without a route between them
+     */
+    private static final byte NO_ROUTE = -1;
+
+    private final CrossingGraph graph;
+
+    /**
+     * Next hops of the shortest routes: nextHops[from * nodes + to] is the index of the edge leaving the node from
+     * (relative to its first edge), or NO_ROUTE. Null for maps with more than ALL_PAIRS_LIMIT crossings.
+     */
+    private final byte[] nextHops;
+
+    /**
+     * Shortest routes by (start cell, end cell) pairs
+     */
+    private final Map<Long, Coordinates[]> cache = new HashMap<>();
+
+    /**
+     * Scratch arrays of the search, indexed by node id. The last two entries belong to the start and end tiles
+     * when they aren't nodes. An entry is valid only if its visited value equals the current search's stamp.
+     */
+    private final int[] distances;
+    private final int[] previous;
+    private final int[] visited;
+    private final boolean[] settled;
+    private int stamp = 0;
+
+    private final NodeQueue queue = new NodeQueue();
+
+    /**
+     * @param graph crossing graph of the map
+     */
+    public Router(CrossingGraph graph) {
+        this.graph = graph;
+        int nodes = graph.getNodeCount() + 2;
+        distances = new int[nodes];
+        previous = new int[nodes];
+        visited = new int[nodes];
+        settled = new boolean[nodes];
+        nextHops = graph.getNodeCount() <= ALL_PAIRS_LIMIT ? computeNextHops(graph) : null;
+    }
+
+    /**
+     * Computes the table of next hops with one Dijkstra search per target crossing, in parallel.
+     * The corridors can be taken both ways, so the tree of the shortest routes to the target
+     * is the tree of the shortest routes from it.
+     */
+    private static byte[] computeNextHops(CrossingGraph graph) {
+        int nodes = graph.getNodeCount();
+        int[] reverseEdges = new int[graph.getEdgeCount()];
+        for (int node = 0; node < nodes; node++) {
+            for (int edge = graph.getFirstEdge(node); edge < graph.getEndEdge(node); edge++)
+                reverseEdges[edge] = findReverseEdge(graph, node, edge);
+        }
+
+        byte[] nextHops = new byte[nodes * nodes];
+        Arrays.fill(nextHops, NO_ROUTE);
+        IntStream.range(0, nodes).parallel().forEach(target -> {
+            int[] distances = new int[nodes];
+            Arrays.fill(distances, Integer.MAX_VALUE);
+            NodeQueue queue = new NodeQueue();
+            distances[target] = 0;
+            queue.add(target, 0);
+            while (!queue.isEmpty()) {
+                int distance = queue.peekPriority();
+                int node = queue.poll();
+                if (distance > distances[node])
+                    continue;
+                for (int edge = graph.getFirstEdge(node); edge < graph.getEndEdge(node); edge++) {
+                    int next = graph.getEdgeTarget(edge);
+                    int nextDistance = distance + graph.getEdgeLength(edge);
+                    if (nextDistance < distances[next]) {
+                        distances[next] = nextDistance;
+                        // the train on the next node gets closer to the target by going back along the edge
+                        nextHops[next * nodes + target] = (byte) (reverseEdges[edge] - graph.getFirstEdge(next));
+                        queue.add(next, nextDistance);
+                    }
+                }
+            }
+        });
+        return nextHops;
+    }
+
+    /**
+     * Finds the edge leading back along the given edge of the node: the one to the same node, of the same length.
+     */
+    private static int findReverseEdge(CrossingGraph graph, int node, int edge) {
+        int target = graph.getEdgeTarget(edge);
+        for (int reverse = graph.getFirstEdge(target); reverse < graph.getEndEdge(target); reverse++) {
+            if (graph.getEdgeTarget(reverse) == node && graph.getEdgeLength(reverse) == graph.getEdgeLength(edge))
+                return reverse;
+        }
+        throw new IllegalStateException("The corridor " + edge + " can't be taken back");
+    }
+
+    /**
+     * Finds the shortest route between two tiles.
+     *
+     * @param start coordinates of the starting point, an empty tile
+     * @param end   coordinates of the ending point, an empty tile
+     * @return array of coordinates of crossings the route goes through, from start to end
+     * @throws IllegalArgumentException if there is no route between the tiles
+     */
+    public synchronized Coordinates[] route(Coordinates start, Coordinates end) {
+        long key = (long) cellOf(start) << 32 | cellOf(end);
+        Coordinates[] route = cache.get(key);
+        if (route == null) {
+            route = nextHops != null ? lookUp(start, end) : search(start, end, null, 0);
+            cache.put(key, route);
+        }
+        return route.clone();
+    }
+
+    /**
+     * Finds the shortest route between two tiles, avoiding the corridors used by other trains.
+     *
+     * @param start   coordinates of the starting point, an empty tile
+     * @param end     coordinates of the ending point, an empty tile
+     * @param load    number of routes using each edge of the crossing graph
+     * @param penalty additional cost, in tiles, of every route already using an edge
+     * @return array of coordinates of crossings the route goes through, from start to end
+     * @throws IllegalArgumentException if there is no route between the tiles
+     */
+    public synchronized Coordinates[] route(Coordinates start, Coordinates end, int[] load, int penalty) {
+        return search(start, end, load, penalty);
+    }
+
+    /**
+     * Plans the routes of many trains. With a positive penalty every route increases the cost of the corridors
+     * it uses, so the next routes take other corridors if the detour is short enough.
+     *
+     * @param endpoints an array of Coordinates pairs, specifying each route's start and end
+     * @param penalty   additional cost, in tiles, of every route already using a corridor, 0 for the shortest routes
+     * @return routes of the trains, indexed like the endpoints
+     * @throws IllegalArgumentException if there is no route between some start and end
+     */
+    public synchronized Coordinates[][] routeAll(Coordinates[][] endpoints, int penalty) {
+        Coordinates[][] routes = new Coordinates[endpoints.length][];
+        int[] load = penalty > 0 ? new int[graph.getEdgeCount()] : null;
+        for (int i = 0; i < endpoints.length; i++) {
+            if (load == null) {
+                routes[i] = route(endpoints[i][0], endpoints[i][1]);
+            } else {
+                routes[i] = search(endpoints[i][0], endpoints[i][1], load, penalty);
+                addLoad(routes[i], load);
+            }
+        }
+        return routes;
+    }
+
+    /**
+     * Increases the load of every corridor between the route's consecutive nodes, in both directions.
+     */
+    private void addLoad(Coordinates[] route, int[] load) {
+        for (int i = 0; i < route.length - 1; i++) {
+            int from = graph.getNode(cellOf(route[i]));
+            int to = graph.getNode(cellOf(route[i + 1]));
+            if (from < 0 || to < 0)
+                continue;
+            int edge = graph.findEdge(from, to);
+            int reverse = graph.findEdge(to, from);
+            if (edge >= 0)
+                load[edge]++;
+            if (reverse >= 0)
+                load[reverse]++;
+        }
+    }
+
+    private Coordinates[] search(Coordinates start, Coordinates end, int[] load, int penalty) {
+        int startCell = cellOf(start);
+        int endCell = cellOf(end);
+        checkEnds(start, end, startCell, endCell);
+
+        int startNode = graph.getNode(startCell);
+        int endNode = graph.getNode(endCell);
+        int[] startEnds = startNode < 0 ? graph.getCorridorEnds(startCell) : null;
+        int[] endEnds = endNode < 0 ? graph.getCorridorEnds(endCell) : null;
+
+        // both tiles in the same corridor, the train goes straight there
+        if (startEnds != null && endEnds != null && sameCorridor(startEnds, endEnds)
+                && (start.getRow() == end.getRow() || start.getCol() == end.getCol()))
+            return new Coordinates[]{start, end};
+
+        int source = startNode >= 0 ? startNode : graph.getNodeCount();
+        int target = endNode >= 0 ? endNode : graph.getNodeCount() + 1;
+
+        stamp++;
+        queue.clear();
+        reach(source, 0, -1, endCell);
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            if (settled[node])
+                continue;
+            settled[node] = true;
+            if (node == target)
+                return buildRoute(start, end, source, target);
+
+            if (node == graph.getNodeCount()) {
+                // the start tile, connected to the ends of its corridor
+                reach(startEnds[0], startEnds[1], node, endCell);
+                reach(startEnds[2], startEnds[3], node, endCell);
+                continue;
+            }
+            if (endEnds != null) {
+                if (node == endEnds[0])
+                    reach(target, distances[node] + endEnds[1], node, endCell);
+                if (node == endEnds[2])
+                    reach(target, distances[node] + endEnds[3], node, endCell);
+            }
+            for (int edge = graph.getFirstEdge(node); edge < graph.getEndEdge(node); edge++) {
+                int cost = graph.getEdgeLength(edge);
+                if (load != null)
+                    cost += penalty * load[edge];
+                reach(graph.getEdgeTarget(edge), distances[node] + cost, node, endCell);
+            }
+        }
+        throw new IllegalArgumentException("There is no route " + start + " -> " + end);
+    }
+
+    /**
+     * Builds the shortest route from the table of next hops.
+     * A tile inside a corridor can be left through both ends of the corridor, so the shorter way is chosen.
+     */
+    private Coordinates[] lookUp(Coordinates start, Coordinates end) {
+        int startCell = cellOf(start);
+        int endCell = cellOf(end);
+        checkEnds(start, end, startCell, endCell);
+
+        int[] startEnds = corridorEnds(startCell);
+        int[] endEnds = corridorEnds(endCell);
+        if (startEnds.length == 4 && endEnds.length == 4 && sameCorridor(startEnds, endEnds)
+                && (start.getRow() == end.getRow() || start.getCol() == end.getCol()))
+            return new Coordinates[]{start, end};
+
+        int bestFrom = -1, bestTo = -1;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < startEnds.length; i += 2) {
+            for (int j = 0; j < endEnds.length; j += 2) {
+                long distance = tableDistance(startEnds[i], endEnds[j]);
+                if (distance == Long.MAX_VALUE)
+                    continue;
+                distance += startEnds[i + 1] + endEnds[j + 1];
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestFrom = startEnds[i];
+                    bestTo = endEnds[j];
+                }
+            }
+        }
+        if (bestFrom < 0)
+            throw new IllegalArgumentException("There is no route " + start + " -> " + end);
+
+        List<Coordinates> route = new ArrayList<>();
+        if (graph.getNode(startCell) < 0)
+            route.add(start);
+        int nodes = graph.getNodeCount();
+        for (int node = bestFrom; ; node = graph.getEdgeTarget(graph.getFirstEdge(node) + nextHops[node * nodes + bestTo])) {
+            route.add(coordinatesOf(graph.getNodeCell(node)));
+            if (node == bestTo)
+                break;
+        }
+        if (graph.getNode(endCell) < 0)
+            route.add(end);
+        return route.toArray(new Coordinates[0]);
+    }
+
+    /**
+     * Returns the crossings a tile can be left through, with the distances to them.
+     *
+     * @return {node, distance} for a crossing, {first node, distance, second node, distance} for a corridor's tile
+     */
+    private int[] corridorEnds(int cell) {
+        int node = graph.getNode(cell);
+        return node >= 0 ? new int[]{node, 0} : graph.getCorridorEnds(cell);
+    }
+
+    /**
+     * Sums up the lengths of the corridors of the shortest route between two crossings.
+     *
+     * @return length in tiles or Long.MAX_VALUE if there is no route
+     */
+    private long tableDistance(int from, int to) {
+        int nodes = graph.getNodeCount();
+        long distance = 0;
+        for (int node = from; node != to; ) {
+            byte hop = nextHops[node * nodes + to];
+            if (hop == NO_ROUTE)
+                return Long.MAX_VALUE;
+            int edge = graph.getFirstEdge(node) + hop;
+            distance += graph.getEdgeLength(edge);
+            node = graph.getEdgeTarget(edge);
+        }
+        return distance;
+    }
+
+    private void checkEnds(Coordinates start, Coordinates end, int startCell, int endCell) {
+        if (!graph.isPassable(startCell) || !graph.isPassable(endCell))
+            throw new IllegalArgumentException("Route " + start + " -> " + end + " has to start and end on empty tiles");
+        if (startCell == endCell)
+            throw new IllegalArgumentException("Route " + start + " -> " + end + " has the same start and end");
+    }
+
+    /**
+     * Updates the distance to the node if the new one is shorter and queues the node.
+     */
+    private void reach(int node, int distance, int from, int endCell) {
+        if (visited[node] == stamp && (settled[node] || distances[node] <= distance))
+            return;
+        visited[node] = stamp;
+        settled[node] = false;
+        distances[node] = distance;
+        previous[node] = from;
+        queue.add(node, distance + estimate(node, endCell));
+    }
+
+    /**
+     * Manhattan distance from the node to the end, never more than the real distance
+     */
+    private int estimate(int node, int endCell) {
+        if (node >= graph.getNodeCount())
+            return 0;
+        int cell = graph.getNodeCell(node);
+        int width = graph.getWidth();
+        return Math.abs(cell / width - endCell / width) + Math.abs(cell % width - endCell % width);
+    }
+
+    private static boolean sameCorridor(int[] startEnds, int[] endEnds) {
+        return (startEnds[0] == endEnds[0] && startEnds[2] == endEnds[2])
+                || (startEnds[0] == endEnds[2] && startEnds[2] == endEnds[0]);
+    }
+
+    private Coordinates[] buildRoute(Coordinates start, Coordinates end, int source, int target) {
+        List<Coordinates> route = new ArrayList<>();
+        for (int node = target; node != -1; node = previous[node]) {
+            if (node == graph.getNodeCount())
+                route.add(start);
+            else if (node == graph.getNodeCount() + 1)
+                route.add(end);
+            else
+                route.add(coordinatesOf(graph.getNodeCell(node)));
+            if (node == source)
+                break;
+        }
+        Coordinates[] result = new Coordinates[route.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = route.get(result.length - 1 - i);
+        return result;
+    }
+
+    private int cellOf(Coordinates field) {
+        return field.getRow() * graph.getWidth() + field.getCol();
+    }
+
+    private Coordinates coordinatesOf(int cell) {
+        return new Coordinates(cell / graph.getWidth(), cell % graph.getWidth());
+    }
+
+    /**
+     * Binary min-heap of node ids ordered by their priorities, without boxing.
+     * A node may be queued many times, the outdated entries are skipped by the search.
+     */
+    private static class NodeQueue {
+        private long[] entries = new long[64];
+        private int size = 0;
+
+        void add(int node, int priority) {
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            long entry = (long) priority << 32 | node;
+            int i = size++;
+            while (i > 0 && entries[(i - 1) / 2] > entry) {
+                entries[i] = entries[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            entries[i] = entry;
+        }
+
+        int peekPriority() {
+            return (int) (entries[0] >>> 32);
+        }
+
+        int poll() {
+            int node = (int) entries[0];
+            long last = entries[--size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && entries[child + 1] < entries[child])
+                    child++;
+                if (entries[child] >= last)
+                    break;
+                entries[i] = entries[child];
+                i = child;
+            }
+            entries[i] = last;
+            return node;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -11,19 +11,24 @@ class Segment {
     private final Coordinates start;
     private final Coordinates end;
     private ReentrantLock lock = new ReentrantLock();
+    /**
+     * Position of this segment's lock in the global order of acquiring the locks.
+     * Copies of the same segment have the same order.
+     */
+    private int lockOrder;
     /**
      * Specifies to which train this segment belongs
      */
-    private final FieldTypes trainCrossing;
+    private final int trainCrossing;
 
     /**
      * @param start         Coordinates of the starting point of this segment
      *                      from the perspective of the trainCrossing train
      * @param end           Coordinates of the ending point of this segment
      *                      from the perspective of the trainCrossing train
-     * @param trainCrossing enum defining the train this segment belongs to
+     * @param trainCrossing id of the train this segment belongs to
      */
-    public Segment(Coordinates start, Coordinates end, FieldTypes trainCrossing) {
+    public Segment(Coordinates start, Coordinates end, int trainCrossing) {
         this.start = start;
         this.end = end;
         this.trainCrossing = trainCrossing;
@@ -32,9 +37,11 @@ class Segment {
     /**
      * Locks this segment.
      * To unlock use unlockSegment.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for the segment
      */
-    public void lockSegment() {
-        lock.lock();
+    public void lockSegment() throws InterruptedException {
+        lock.lockInterruptibly();
     }
 
     /**
@@ -45,10 +52,14 @@ class Segment {
         lock.unlock();
     }
 
-    public boolean isTrainCrossing(FieldTypes train) {
+    public boolean isTrainCrossing(int train) {
         return trainCrossing == train;
     }
 
+    public int getTrainCrossing() {
+        return trainCrossing;
+    }
+
     public Coordinates getStart() {
         return start;
     }
@@ -65,6 +76,14 @@ class Segment {
         this.lock = lock;
     }
 
+    public int getLockOrder() {
+        return lockOrder;
+    }
+
+    public void setLockOrder(int lockOrder) {
+        this.lockOrder = lockOrder;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -80,6 +99,6 @@ class Segment {
 
     @Override
     public String toString() {
-        return "[" + trainCrossing + ": " + start + ", " + end + ", " + lock + "]";
+        return "[T" + (trainCrossing + 1) + ": " + start + ", " + end + ", " + lock + "]";
     }
 }
@@ -1,58 +1,433 @@
 package metro.algorithm.map;
 
+import metro.algorithm.metrics.SimulationMetrics;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Used for storing and synchronization of shared segments
+ * <p>
+ * When a train enters a shared part of its route, it takes all the segments it needs until it leaves
+ * the shared part at once, in a global order of the segments. A train therefore never waits for a segment while
+ * holding another one it took earlier, so the trains can't deadlock regardless of their number and routes.
+ * <p>
+ * A train starts with its wagons on the first tiles of its route without holding a segment. After parkTrains(),
+ * no other train enters the segments next to the start of a train's route until that train has taken them,
+ * so a train whose route ends there doesn't drive into the waiting train. Trains which would hold back
+ * each other this way, e.g. two trains going between the same stations the opposite ways, are rejected.
+ * <p>
+ * In the AdmissionMode.TILES mode the trains moving the same way share the segments, and the tiles keep them apart.
+ * A train has to take a segment alone if it moves the other way than the trains holding it, crosses it
+ * or turns around in it, so the trains holding a segment together always leave it on the other end.
+ * A segment some train waits for takes no more trains, so the waiting train isn't starved.
  */
 public class SegmentLock {
     Segment[] segments;
 
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+
+    /**
+     * Segments of every train grouped by their start, indexed by train id and then by the starting crossing.
+     * Lets the trains find the segments they enter or leave without scanning all of them.
+     */
+    private final List<Map<Coordinates, Segment[]>> segmentsByStart;
+    /**
+     * Segments of every train grouped by their end, indexed by train id and then by the ending crossing.
+     */
+    private final List<Map<Coordinates, Segment[]>> segmentsByEnd;
+
+    /**
+     * Segments every train has to take when entering a crossing moving forward, indexed by train id and then by
+     * the crossing. Contains every segment of the chain of overlapping or adjacent segments starting at the crossing,
+     * sorted by the global order of the segments.
+     */
+    private final List<Map<Coordinates, Segment[]>> admissionForward;
+    /**
+     * Segments every train has to take when entering a crossing moving backward, like admissionForward.
+     */
+    private final List<Map<Coordinates, Segment[]>> admissionBackward;
+
+    /**
+     * Directions the train moves through the segments of admissionForward, in the same order.
+     * 1 or -1 for the segments between two crossings, the way through the crossing for the segments of one crossing,
+     * 0 if the train has to take the segment alone. Used only when the segments are shared.
+     */
+    private final List<Map<Coordinates, int[]>> directionsForward;
+    /**
+     * Directions the train moves through the segments of admissionBackward, like directionsForward.
+     */
+    private final List<Map<Coordinates, int[]>> directionsBackward;
+
+    /**
+     * True if the trains moving the same way share the segments, in the AdmissionMode.TILES mode
+     */
+    private volatile boolean shared = false;
+
+    /**
+     * Guards the state of the shared segments and of the parked trains, the trains wait on its condition
+     * for a segment to be released or a parked train to leave
+     */
+    private final ReentrantLock sharedLock = new ReentrantLock();
+    private final Condition sharedReleased = sharedLock.newCondition();
+    /**
+     * Number of the trains holding each shared segment, indexed by the global order of the segments
+     */
+    private int[] holders;
+    /**
+     * Direction of the trains holding each shared segment, indexed by the global order of the segments
+     */
+    private int[] holderDirections;
+    /**
+     * Number of the trains waiting for each shared segment, indexed by the global order of the segments
+     */
+    private int[] waiters;
+    /**
+     * Shared segments held by each train, indexed by train id
+     */
+    private BitSet[] heldSegments;
+
+    /**
+     * Train waiting at the start of its route at each end of each segment, or TunnelsMapMonitor.NO_TRAIN,
+     * at 2 * the global order of the segment for its start and one more for its end. Guarded by sharedLock.
+     */
+    private final int[] parkedTrains;
+    /**
+     * Number of the ends in parkedTrains with a train, lets the trains skip the check when there's none
+     */
+    private volatile int parkedCount = 0;
+    /**
+     * First crossing of each train's route, indexed by train id
+     */
+    private final Coordinates[] routeStarts;
+
     /**
-     * @param segments array of shared segments in the map
+     * Owners of the segments taken via the non-blocking reservation API.
+     * Copies of the same segment share one lock, so the lock identifies the segment.
      */
-    public SegmentLock(Segment[] segments) {
+    private final Map<ReentrantLock, Integer> reservations = new IdentityHashMap<>();
+
+    /**
+     * Waiting and holding times of the segments and the trains, recorded by lockTrainSegments and unlockTrainSegments.
+     * Replaced by reset().
+     */
+    private SimulationMetrics metrics;
+
+    /**
+     * Receives the acquired and released segments, null if they aren't recorded
+     */
+    private volatile EventRecorder eventRecorder;
+
+    /**
+     * One copy of every segment, indexed by the global order of the segments
+     */
+    private final Segment[] segmentsByOrder;
+
+    /**
+     * Train holding the lock of each segment, or TunnelsMapMonitor.NO_TRAIN, indexed by the global order of the segments.
+     * Set after the lock is taken and cleared before it's released, so a train read here does hold the lock.
+     */
+    private final AtomicIntegerArray owners;
+
+    /**
+     * Segment each train is blocked on in lockTrainSegments, or -1, indexed by train id
+     */
+    private final AtomicIntegerArray awaitedSegments;
+
+    /**
+     * Number of the locks of the segments released so far, incremented before a lock is released.
+     * Also incremented when a train stops waiting for a segment or leaves the start of its route,
+     * since either can let a blocked train go as well.
+     */
+    private final AtomicLong releases = new AtomicLong();
+
+    /**
+     * @param segments    array of shared segments in the map, the copies of the same segment sharing one lock
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
+     */
+    public SegmentLock(Segment[] segments, Coordinates[][] trainRoutes) {
         this.segments = segments;
         initLocks();
+        segmentsByOrder = createOrderIndex();
+        owners = new AtomicIntegerArray(segmentsByOrder.length);
+        for (int i = 0; i < segmentsByOrder.length; i++)
+            owners.set(i, TunnelsMapMonitor.NO_TRAIN);
+        parkedTrains = new int[2 * segmentsByOrder.length];
+        Arrays.fill(parkedTrains, TunnelsMapMonitor.NO_TRAIN);
+        awaitedSegments = new AtomicIntegerArray(trainRoutes.length);
+        for (int i = 0; i < trainRoutes.length; i++)
+            awaitedSegments.set(i, -1);
+        metrics = new SimulationMetrics(trainRoutes.length, getSegmentNames());
+        segmentsByStart = createIndex(true);
+        segmentsByEnd = createIndex(false);
+        admissionForward = new ArrayList<>(trainRoutes.length);
+        admissionBackward = new ArrayList<>(trainRoutes.length);
+        directionsForward = new ArrayList<>(trainRoutes.length);
+        directionsBackward = new ArrayList<>(trainRoutes.length);
+        routeStarts = new Coordinates[trainRoutes.length];
+        for (int train = 0; train < trainRoutes.length; train++) {
+            Map<Coordinates, int[]> forward = new HashMap<>();
+            Map<Coordinates, int[]> backward = new HashMap<>();
+            admissionForward.add(createAdmissionIndex(train, trainRoutes[train], true, forward));
+            admissionBackward.add(createAdmissionIndex(train, trainRoutes[train], false, backward));
+            directionsForward.add(forward);
+            directionsBackward.add(backward);
+            routeStarts[train] = trainRoutes[train][0];
+        }
     }
 
     /**
-     * Every train has its own copy of a shared segment. Therefore, we have to make sure
-     * that every copy of the same segment uses the same lock.
+     * Sets whether the trains moving the same way share the segments.
+     * Can be called only when no train holds a segment.
+     *
+     * @param mode AdmissionMode.TILES to share the segments, AdmissionMode.SEGMENTS to take them alone
      */
-    private void initLocks() {
-        for (int i = 0; i < segments.length; i++) {
-            ReentrantLock segLock = segments[i].getLock();
-            for (int j = i + 1; j < segments.length; j++) {
-                if ((segments[i].getStart().equals(segments[j].getEnd()) && segments[i].getEnd().equals(segments[j].getStart()))
-                        || (segments[i].getStart().equals(segments[j].getStart()) && segments[i].getEnd().equals(segments[j].getEnd()))) {
-                    segments[j].setLock(segLock);
+    void setAdmissionMode(AdmissionMode mode) {
+        if (mode == AdmissionMode.TILES && holders == null) {
+            holders = new int[segmentsByOrder.length];
+            holderDirections = new int[segmentsByOrder.length];
+            waiters = new int[segmentsByOrder.length];
+            heldSegments = new BitSet[awaitedSegments.length()];
+            for (int i = 0; i < heldSegments.length; i++)
+                heldSegments[i] = new BitSet();
+        }
+        shared = mode == AdmissionMode.TILES;
+    }
+
+    /**
+     * Makes the trains waiting at the starts of their routes hold back the other trains: no other train
+     * enters a segment next to the start of a waiting train's route until the waiting train has taken it.
+     * Replaces the trains set before. Can be called only when no train holds a segment.
+     *
+     * @param atStart true for every train still at the start of its route, indexed by train id
+     * @throws IllegalArgumentException if the waiting trains hold back each other, so none of them could leave.
+     *                                  The trains set before are kept then.
+     */
+    void parkTrains(boolean[] atStart) {
+        int[] parked = new int[parkedTrains.length];
+        Arrays.fill(parked, TunnelsMapMonitor.NO_TRAIN);
+        int count = 0;
+        for (int train = 0; train < atStart.length; train++) {
+            if (!atStart[train])
+                continue;
+            Coordinates start = routeStarts[train];
+            for (Segment s : getTrainSegments(train, start, admissionForward)) {
+                // the wagons stand in the segments ending at the start
+                if (!s.getStart().equals(start) && !s.getEnd().equals(start))
+                    continue;
+                int end = getParkedIndex(s, start);
+                if (parked[end] == TunnelsMapMonitor.NO_TRAIN) {
+                    parked[end] = train;
+                    count++;
                 }
             }
         }
+
+        boolean[] visited = new boolean[atStart.length];
+        for (int train = 0; train < atStart.length; train++) {
+            List<Integer> cycle = atStart[train] && !visited[train]
+                    ? findWaitingCycle(train, parked, visited, new boolean[atStart.length], new ArrayList<>())
+                    : null;
+            if (cycle != null) {
+                StringBuilder trains = new StringBuilder();
+                for (int t : cycle) {
+                    if (trains.length() > 0)
+                        trains.append(", ");
+                    trains.append('T').append(t + 1).append(" at ").append(routeStarts[t]);
+                }
+                throw new IllegalArgumentException("The trains " + trains
+                        + " can't leave the starts of their routes, each one waits for the next one to leave");
+            }
+        }
+
+        sharedLock.lock();
+        try {
+            System.arraycopy(parked, 0, parkedTrains, 0, parked.length);
+            parkedCount = count;
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * Follows the trains a train waiting at the start of its route has to let go first, depth first.
+     *
+     * @param train   id of the waiting train
+     * @param parked  train waiting in each segment, indexed by the global order of the segments
+     * @param visited trains already followed, indexed by train id
+     * @param onPath  trains on the path to the train, indexed by train id
+     * @param path    ids of the trains on the path to the train
+     * @return trains waiting for each other in a cycle, or null if there's none
+     */
+    private List<Integer> findWaitingCycle(int train, int[] parked, boolean[] visited, boolean[] onPath,
+                                           List<Integer> path) {
+        visited[train] = true;
+        onPath[train] = true;
+        path.add(train);
+        for (Segment s : getTrainSegments(train, routeStarts[train], admissionForward)) {
+            int other = getOtherParkedTrain(parked, s.getLockOrder(), train);
+            if (other == TunnelsMapMonitor.NO_TRAIN)
+                continue;
+            if (onPath[other])
+                return new ArrayList<>(path.subList(path.indexOf(other), path.size()));
+            if (!visited[other]) {
+                List<Integer> cycle = findWaitingCycle(other, parked, visited, onPath, path);
+                if (cycle != null)
+                    return cycle;
+            }
+        }
+        onPath[train] = false;
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    /**
+     * Returns a train waiting at the start of its route at either end of the segment, see parkTrains().
+     *
+     * @param segment position of the segment in the global order of the segments
+     * @return id of the train, or TunnelsMapMonitor.NO_TRAIN if no train waits in the segment
+     */
+    public int getParkedTrain(int segment) {
+        sharedLock.lock();
+        try {
+            return getOtherParkedTrain(parkedTrains, segment, TunnelsMapMonitor.NO_TRAIN);
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * Every train has its own copy of a shared segment, and every copy of the same segment uses the same lock,
+     * set by TunnelsMapMonitor. The copies get the same position in the global order of the locks.
+     */
+    private void initLocks() {
+        // the order in which the locks are acquired, shared by the copies of a segment
+        Map<ReentrantLock, Integer> lockOrders = new IdentityHashMap<>();
+        for (Segment s : segments)
+            s.setLockOrder(lockOrders.computeIfAbsent(s.getLock(), lock -> lockOrders.size()));
+    }
+
+    /**
+     * @return the first copy of every segment, indexed by the global order of the segments
+     */
+    private Segment[] createOrderIndex() {
+        List<Segment> firstCopies = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.getLockOrder() == firstCopies.size())
+                firstCopies.add(s);
+        }
+        return firstCopies.toArray(new Segment[0]);
+    }
+
+    /**
+     * Names the segments by their ends, e.g. (1,2)-(1,8), as seen by the first train sharing the segment.
+     *
+     * @return names of the segments, indexed by the global order of their locks
+     */
+    private String[] getSegmentNames() {
+        String[] names = new String[segmentsByOrder.length];
+        for (int i = 0; i < names.length; i++)
+            names[i] = segmentsByOrder[i].getStart() + "-" + segmentsByOrder[i].getEnd();
+        return names;
     }
 
     /**
      * Locks every train segment starting with start that the train is entering.
      * If moveForward is false, locks every segment with s.end == start
      *
-     * @param train       enum defining current train
+     * @param train       id of the current train
      * @param start       next crossing the train will going through
      * @param moveForward boolean value specifying the direction the train is heading
+     * @return time in ns the train waited for the segments taken by other trains, 0 if it didn't wait
+     * @throws InterruptedException if the train is interrupted while waiting for a segment
      */
-    public void lockTrainSegments(FieldTypes train, Coordinates start, boolean moveForward) {
-        for (Segment s : segments) {
-            if (moveForward) {
-                if (s.isTrainCrossing(train) && s.getStart().equals(start)) {
-                    if (!s.getLock().isHeldByCurrentThread())
-                        s.lockSegment();
+    public long lockTrainSegments(int train, Coordinates start, boolean moveForward) throws InterruptedException {
+        Segment[] admission = getTrainSegments(train, start, moveForward ? admissionForward : admissionBackward);
+        if (admission.length == 0)
+            return 0;
+        if (shared)
+            return lockSharedSegments(train, admission, getDirections(train, start, moveForward));
+        long parkedWait = parkedCount > 0 ? awaitParkedTrains(train, admission) : 0;
+        boolean[] taken = new boolean[admission.length];
+        // time the train started waiting, read only when it had to wait
+        long waitStart = 0;
+        boolean waited = false;
+
+        try {
+            while (true) {
+                int busy = -1;
+                for (int i = 0; i < admission.length && busy < 0; i++) {
+                    ReentrantLock lock = admission[i].getLock();
+                    if (lock.isHeldByCurrentThread())
+                        continue;
+                    if (lock.tryLock()) {
+                        taken[i] = true;
+                        owners.set(admission[i].getLockOrder(), train);
+                    } else
+                        busy = i;
+                }
+                if (busy < 0) {
+                    if (parkedCount > 0)
+                        leaveStart(train);
+                    long now = System.nanoTime();
+                    EventRecorder recorder = eventRecorder;
+                    for (int i = 0; i < admission.length; i++) {
+                        if (taken[i]) {
+                            metrics.getSegment(admission[i].getLockOrder()).acquired(now);
+                            if (recorder != null)
+                                recorder.segmentAcquired(train, admission[i].getLockOrder());
+                        }
+                    }
+                    if (!waited)
+                        return parkedWait;
+                    metrics.getTrain(train).waited(now - waitStart);
+                    return parkedWait + now - waitStart;
                 }
-            } else {
-                if (s.isTrainCrossing(train) && s.getEnd().equals(start)) {
-                    if (!s.getLock().isHeldByCurrentThread())
-                        s.lockSegment();
+
+                // we back off, so the trains waiting for the segments we've taken can go,
+                // then wait for the busy segment and try to take the rest again
+                releaseTaken(admission, taken);
+                int awaited = admission[busy].getLockOrder();
+                long blocked = System.nanoTime();
+                if (!waited) {
+                    waitStart = blocked;
+                    waited = true;
                 }
+                awaitedSegments.set(train, awaited);
+                try {
+                    admission[busy].lockSegment();
+                } finally {
+                    awaitedSegments.set(train, -1);
+                }
+                taken[busy] = true;
+                owners.set(awaited, train);
+                metrics.getSegment(awaited).contended(System.nanoTime() - blocked);
+            }
+        } catch (InterruptedException e) {
+            releaseTaken(admission, taken);
+            throw e;
+        }
+    }
+
+    /**
+     * Unlocks the segments taken during the current lockTrainSegments call.
+     */
+    private void releaseTaken(Segment[] admission, boolean[] taken) {
+        for (int i = 0; i < admission.length; i++) {
+            if (taken[i]) {
+                unlock(admission[i]);
+                taken[i] = false;
             }
         }
     }
@@ -62,24 +437,613 @@ public class SegmentLock {
      * Unlocks every train segment ending with end that the train is entering.
      * If moveForward is false, locks every segment with s.start == end
      *
-     * @param train       enum defining current train
+     * @param train       id of the current train
+     * @param end         previous crossing the train just left
+     * @param moveForward boolean value specifying the direction the train is heading
+     */
+    public void unlockTrainSegments(int train, Coordinates end, boolean moveForward) {
+        if (shared) {
+            releaseTrainSegments(train, end, moveForward);
+            return;
+        }
+        for (Segment s : getTrainSegments(train, end, moveForward ? segmentsByEnd : segmentsByStart)) {
+            if (s.getLock().isHeldByCurrentThread()) {
+                metrics.getSegment(s.getLockOrder()).released(System.nanoTime());
+                recordRelease(train, s);
+                unlock(s);
+            }
+        }
+    }
+
+    /**
+     * Unlocks every segment the train holds, e.g. when the train's task ends.
+     * Has to be called by the train's thread, the locks of the segments can't be released by another one.
+     *
+     * @param train id of the current train
+     */
+    public void releaseSegments(int train) {
+        if (shared) {
+            sharedLock.lock();
+            try {
+                for (Segment s : segmentsByOrder)
+                    leaveSharedSegment(train, s);
+            } finally {
+                sharedLock.unlock();
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        for (Segment s : segmentsByOrder) {
+            if (owners.get(s.getLockOrder()) == train && s.getLock().isHeldByCurrentThread()) {
+                metrics.getSegment(s.getLockOrder()).released(now);
+                recordRelease(train, s);
+                unlock(s);
+            }
+        }
+    }
+
+    /**
+     * Prepares the segments for new trains on the same routes: clears the metrics, the reservations
+     * and the recorder. Can be called only when no train runs.
+     *
+     * @throws IllegalStateException if a segment is still held by a train
+     */
+    public void reset() {
+        for (int i = 0; i < segmentsByOrder.length; i++) {
+            if (owners.get(i) != TunnelsMapMonitor.NO_TRAIN || segmentsByOrder[i].getLock().isLocked())
+                throw new IllegalStateException("Segment " + segmentsByOrder[i].getStart() + "-"
+                        + segmentsByOrder[i].getEnd() + " is still held");
+        }
+        reservations.clear();
+        parkTrains(new boolean[0]);
+        if (heldSegments != null) {
+            for (BitSet held : heldSegments)
+                held.clear();
+        }
+        eventRecorder = null;
+        metrics = new SimulationMetrics(awaitedSegments.length(), getSegmentNames());
+    }
+
+    private void unlock(Segment s) {
+        owners.set(s.getLockOrder(), TunnelsMapMonitor.NO_TRAIN);
+        releases.incrementAndGet();
+        s.unlockSegment();
+    }
+
+
+    /**
+     * Takes the given segments for the train, e.g. the segments it held when the simulation was saved.
+     * Has to be called by the train's thread before it moves.
+     *
+     * @param train    id of the train
+     * @param segments positions of the segments in the global order of the segments
+     * @throws InterruptedException if the train is interrupted while waiting for a segment
+     */
+    public void lockSegments(int train, int[] segments) throws InterruptedException {
+        int[] sorted = segments.clone();
+        // in the global order, like lockTrainSegments, so the trains can't deadlock
+        Arrays.sort(sorted);
+        long now = System.nanoTime();
+        for (int segment : sorted) {
+            Segment s = segmentsByOrder[segment];
+            if (s.getLock().isHeldByCurrentThread())
+                continue;
+            s.lockSegment();
+            owners.set(segment, train);
+            metrics.getSegment(segment).acquired(now);
+            EventRecorder recorder = eventRecorder;
+            if (recorder != null)
+                recorder.segmentAcquired(train, segment);
+        }
+    }
+
+    /**
+     * Returns the train holding the lock of the segment.
+     *
+     * @param segment position of the segment in the global order of the segments
+     * @return id of the train or TunnelsMapMonitor.NO_TRAIN
+     */
+    public int getOwner(int segment) {
+        return owners.get(segment);
+    }
+
+    /**
+     * Returns the segment the train is blocked on in lockTrainSegments. The train has released the segments
+     * it took during the call and hasn't moved yet, it only holds the segments it took at the previous crossings.
+     *
+     * @param train id of the train
+     * @return position of the segment in the global order of the segments, or -1 if the train isn't blocked
+     */
+    public int getAwaitedSegment(int train) {
+        return awaitedSegments.get(train);
+    }
+
+    /**
+     * Returns the number of the locks of the segments released so far, counting also the trains which stopped
+     * waiting for a segment or left the start of their routes.
+     * If it's unchanged, no blocked train could have been let go in the meantime.
+     *
+     * @return number of released locks
+     */
+    public long getReleaseCount() {
+        return releases.get();
+    }
+
+    /**
+     * @return number of distinct shared segments, copies of the same segment counted once
+     */
+    public int getNumberOfSegments() {
+        return segmentsByOrder.length;
+    }
+
+
+    /**
+     * Non-blocking counterpart of lockTrainSegments, used by simulations running all the trains in a single thread.
+     * Reserves every train segment starting with start (or ending with start, if moveForward is false),
+     * but only if none of them is reserved by another train. Either all the segments are reserved or none.
+     * Other blocked trains may be able to go afterwards, even if this one can't, if getReleaseCount() changed.
+     *
+     * @param train       id of the current train
+     * @param start       next crossing the train will going through
+     * @param moveForward boolean value specifying the direction the train is heading
+     * @return true if the train can enter, false if one of the segments is taken by another train
+     */
+    public boolean tryReserveTrainSegments(int train, Coordinates start, boolean moveForward) {
+        Segment[] trainSegments = getTrainSegments(train, start, moveForward ? admissionForward : admissionBackward);
+        if (shared)
+            return trySharedSegments(train, trainSegments, getDirections(train, start, moveForward));
+        if (parkedCount > 0 && findParkedSegment(train, trainSegments) >= 0)
+            return false;
+        for (Segment s : trainSegments) {
+            Integer owner = reservations.get(s.getLock());
+            if (owner != null && owner != train)
+                return false;
+        }
+        EventRecorder recorder = eventRecorder;
+        for (Segment s : trainSegments) {
+            if (reservations.put(s.getLock(), train) == null && recorder != null)
+                recorder.segmentAcquired(train, s.getLockOrder());
+        }
+        if (parkedCount > 0)
+            leaveStart(train);
+        return true;
+    }
+
+
+    /**
+     * Non-blocking counterpart of unlockTrainSegments.
+     * Releases every segment reserved by the train ending with end (or starting with end, if moveForward is false).
+     *
+     * @param train       id of the current train
      * @param end         previous crossing the train just left
      * @param moveForward boolean value specifying the direction the train is heading
+     * @return true if at least one segment was released
+     */
+    public boolean releaseTrainSegments(int train, Coordinates end, boolean moveForward) {
+        boolean released = false;
+        if (shared) {
+            sharedLock.lock();
+            try {
+                for (Segment s : getTrainSegments(train, end, moveForward ? segmentsByEnd : segmentsByStart))
+                    released |= leaveSharedSegment(train, s);
+            } finally {
+                sharedLock.unlock();
+            }
+            return released;
+        }
+        for (Segment s : getTrainSegments(train, end, moveForward ? segmentsByEnd : segmentsByStart)) {
+            Integer owner = reservations.get(s.getLock());
+            if (owner != null && owner == train) {
+                recordRelease(train, s);
+                reservations.remove(s.getLock());
+                released = true;
+            }
+        }
+        return released;
+    }
+
+
+    /**
+     * Takes the segments for the train in the shared mode, waiting until no train holding them
+     * moves the other way.
+     *
+     * @return time in ns the train waited, 0 if it didn't wait
+     */
+    private long lockSharedSegments(int train, Segment[] admission, int[] directions) throws InterruptedException {
+        long waitStart = 0;
+        int awaited = -1;
+        sharedLock.lock();
+        try {
+            int busy;
+            while ((busy = tryEnterSharedSegments(train, admission, directions)) >= 0) {
+                if (awaited < 0)
+                    waitStart = System.nanoTime();
+                if (busy != awaited) {
+                    setAwaitedSegment(train, busy);
+                    awaited = busy;
+                }
+                sharedReleased.await();
+            }
+        } finally {
+            if (awaited >= 0)
+                setAwaitedSegment(train, -1);
+            sharedLock.unlock();
+        }
+        if (awaited < 0)
+            return 0;
+        long waited = System.nanoTime() - waitStart;
+        metrics.getSegment(awaited).contended(waited);
+        metrics.getTrain(train).waited(waited);
+        return waited;
+    }
+
+    /**
+     * Non-blocking counterpart of lockSharedSegments. A train that can't enter is counted as waiting
+     * for the segment until it enters, so no more trains join the segment in the meantime.
+     *
+     * @return true if the train took the segments
+     */
+    private boolean trySharedSegments(int train, Segment[] admission, int[] directions) {
+        sharedLock.lock();
+        try {
+            int busy = tryEnterSharedSegments(train, admission, directions);
+            if (busy != awaitedSegments.get(train))
+                setAwaitedSegment(train, busy);
+            return busy < 0;
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * Takes every segment for the train if it can share them with the trains holding them, or none of them.
+     * Called with sharedLock held.
+     *
+     * @return -1 if the train took the segments, otherwise the position of the first segment it can't take
+     * in the global order of the segments
+     */
+    private int tryEnterSharedSegments(int train, Segment[] admission, int[] directions) {
+        BitSet held = heldSegments[train];
+        for (int i = 0; i < admission.length; i++) {
+            int segment = admission[i].getLockOrder();
+            if (held.get(segment))
+                continue;
+            if (getOtherParkedTrain(parkedTrains, segment, train) != TunnelsMapMonitor.NO_TRAIN)
+                return segment;
+            if (holders[segment] == 0)
+                continue;
+            int otherWaiters = waiters[segment] - (awaitedSegments.get(train) == segment ? 1 : 0);
+            if (directions[i] == 0 || directions[i] != holderDirections[segment] || otherWaiters > 0)
+                return segment;
+        }
+
+        long now = System.nanoTime();
+        EventRecorder recorder = eventRecorder;
+        for (int i = 0; i < admission.length; i++) {
+            int segment = admission[i].getLockOrder();
+            if (held.get(segment))
+                continue;
+            held.set(segment);
+            if (holders[segment]++ == 0) {
+                holderDirections[segment] = directions[i];
+                owners.set(segment, train);
+                // the segment is held from the first train entering it to the last one leaving it
+                metrics.getSegment(segment).acquired(now);
+            }
+            if (recorder != null)
+                recorder.segmentAcquired(train, segment);
+        }
+        if (parkedCount > 0)
+            leaveStart(train);
+        return -1;
+    }
+
+    /**
+     * Releases the train's copy of a shared segment, if the train holds it. Called with sharedLock held.
+     *
+     * @return true if the train held the segment
+     */
+    private boolean leaveSharedSegment(int train, Segment s) {
+        int segment = s.getLockOrder();
+        if (!heldSegments[train].get(segment))
+            return false;
+        heldSegments[train].clear(segment);
+        recordRelease(train, s);
+        releases.incrementAndGet();
+        if (--holders[segment] == 0) {
+            owners.set(segment, TunnelsMapMonitor.NO_TRAIN);
+            metrics.getSegment(segment).released(System.nanoTime());
+            sharedReleased.signalAll();
+        } else if (owners.get(segment) == train) {
+            for (int other = 0; other < heldSegments.length; other++) {
+                if (heldSegments[other].get(segment)) {
+                    owners.set(segment, other);
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the segment the train waits for in the shared mode. Called with sharedLock held.
+     *
+     * @param segment position of the segment in the global order of the segments, or -1 if the train stopped waiting
+     */
+    private void setAwaitedSegment(int train, int segment) {
+        int old = awaitedSegments.get(train);
+        if (old >= 0) {
+            waiters[old]--;
+            // the trains which couldn't join the segment because of this train can try again
+            releases.incrementAndGet();
+            sharedReleased.signalAll();
+        }
+        if (segment >= 0)
+            waiters[segment]++;
+        awaitedSegments.set(train, segment);
+    }
+
+    /**
+     * Waits until no other train waits at the start of its route in the segments the train enters.
+     * The train takes none of the segments meanwhile.
+     *
+     * @return time in ns the train waited, 0 if it didn't wait
+     */
+    private long awaitParkedTrains(int train, Segment[] admission) throws InterruptedException {
+        long waitStart = 0;
+        int awaited = -1;
+        sharedLock.lock();
+        try {
+            int busy;
+            while ((busy = findParkedSegment(train, admission)) >= 0) {
+                if (awaited < 0)
+                    waitStart = System.nanoTime();
+                awaited = busy;
+                awaitedSegments.set(train, busy);
+                sharedReleased.await();
+            }
+        } finally {
+            if (awaited >= 0)
+                awaitedSegments.set(train, -1);
+            sharedLock.unlock();
+        }
+        if (awaited < 0)
+            return 0;
+        long waited = System.nanoTime() - waitStart;
+        metrics.getSegment(awaited).contended(waited);
+        metrics.getTrain(train).waited(waited);
+        return waited;
+    }
+
+    /**
+     * @return position of the first segment another train waits in at the start of its route
+     * in the global order of the segments, or -1 if there's none
+     */
+    private int findParkedSegment(int train, Segment[] admission) {
+        sharedLock.lock();
+        try {
+            for (Segment s : admission) {
+                if (getOtherParkedTrain(parkedTrains, s.getLockOrder(), train) != TunnelsMapMonitor.NO_TRAIN)
+                    return s.getLockOrder();
+            }
+            return -1;
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * Lets the other trains enter the segments the train waited in at the start of its route,
+     * once it has taken the segments.
+     */
+    private void leaveStart(int train) {
+        sharedLock.lock();
+        try {
+            boolean left = false;
+            for (Segment s : getTrainSegments(train, routeStarts[train], admissionForward)) {
+                for (int end = 2 * s.getLockOrder(); end < 2 * s.getLockOrder() + 2; end++) {
+                    if (parkedTrains[end] == train) {
+                        parkedTrains[end] = TunnelsMapMonitor.NO_TRAIN;
+                        parkedCount--;
+                        left = true;
+                    }
+                }
+            }
+            if (left) {
+                // counted like a released lock, the trains held back by this one can go now
+                releases.incrementAndGet();
+                sharedReleased.signalAll();
+            }
+        } finally {
+            sharedLock.unlock();
+        }
+    }
+
+    /**
+     * @return index of the end of the segment at the crossing in parkedTrains
+     */
+    private int getParkedIndex(Segment s, Coordinates crossing) {
+        int segment = s.getLockOrder();
+        return 2 * segment + (crossing.equals(segmentsByOrder[segment].getStart()) ? 0 : 1);
+    }
+
+    /**
+     * @param parked  trains waiting at the ends of the segments, like parkedTrains
+     * @param segment position of the segment in the global order of the segments
+     * @param train   id of the train to skip
+     * @return id of another train waiting at the start of its route at either end of the segment,
+     * or TunnelsMapMonitor.NO_TRAIN if there's none
+     */
+    private static int getOtherParkedTrain(int[] parked, int segment, int train) {
+        for (int end = 2 * segment; end < 2 * segment + 2; end++) {
+            if (parked[end] != TunnelsMapMonitor.NO_TRAIN && parked[end] != train)
+                return parked[end];
+        }
+        return TunnelsMapMonitor.NO_TRAIN;
+    }
+
+    private int[] getDirections(int train, Coordinates crossing, boolean moveForward) {
+        return (moveForward ? directionsForward : directionsBackward).get(train).get(crossing);
+    }
+
+
+    private void recordRelease(int train, Segment s) {
+        EventRecorder recorder = eventRecorder;
+        if (recorder != null)
+            recorder.segmentReleased(train, s.getLockOrder());
+    }
+
+    /**
+     * Sets the recorder receiving the acquired and released segments.
+     *
+     * @param recorder recorder of the events, or null to stop recording
+     */
+    void setEventRecorder(EventRecorder recorder) {
+        eventRecorder = recorder;
+    }
+
+
+    /**
+     * Looks up the segments of the train in one of the indexes.
+     *
+     * @param train    id of the train
+     * @param crossing crossing the segments start or end with
+     * @param index    one of the indexes of this class
+     * @return segments of the train, empty if there are none
+     */
+    private Segment[] getTrainSegments(int train, Coordinates crossing, List<Map<Coordinates, Segment[]>> index) {
+        if (train >= index.size())
+            return NO_SEGMENTS;
+        return index.get(train).getOrDefault(crossing, NO_SEGMENTS);
+    }
+
+
+    /**
+     * Groups the segments of every train by one of their ends.
+     *
+     * @param byStart true to group by the start of the segments, false to group by the end
+     * @return index of the segments, indexed by train id and then by the crossing
      */
-    public void unlockTrainSegments(FieldTypes train, Coordinates end, boolean moveForward) {
+    private List<Map<Coordinates, Segment[]>> createIndex(boolean byStart) {
+        List<Map<Coordinates, List<Segment>>> groups = new ArrayList<>();
         for (Segment s : segments) {
-            if (moveForward) {
-                if (s.isTrainCrossing(train) && s.getEnd().equals(end)) {
-                    if (s.getLock().isHeldByCurrentThread())
-                        s.unlockSegment();
+            while (groups.size() <= s.getTrainCrossing())
+                groups.add(new HashMap<>());
+            groups.get(s.getTrainCrossing())
+                    .computeIfAbsent(byStart ? s.getStart() : s.getEnd(), crossing -> new ArrayList<>())
+                    .add(s);
+        }
+
+        List<Map<Coordinates, Segment[]>> index = new ArrayList<>(groups.size());
+        for (Map<Coordinates, List<Segment>> trainGroups : groups) {
+            Map<Coordinates, Segment[]> trainIndex = new HashMap<>();
+            trainGroups.forEach((crossing, list) -> trainIndex.put(crossing, list.toArray(new Segment[0])));
+            index.add(trainIndex);
+        }
+        return index;
+    }
+
+
+    /**
+     * Computes the segments the train has to take when entering each crossing of its route.
+     * <p>
+     * Starting from the segments entered at the crossing, every segment entered before the train leaves them
+     * is added as well, so the train takes the whole shared part of its route at once.
+     *
+     * @param train      id of the train
+     * @param route      crossings of the train's route
+     * @param forward    direction the train is heading
+     * @param directions receives the directions the train moves through the segments to take, indexed by the crossing
+     * @return segments to take, indexed by the crossing and sorted by the global order of the segments
+     */
+    private Map<Coordinates, Segment[]> createAdmissionIndex(int train, Coordinates[] route, boolean forward,
+                                                             Map<Coordinates, int[]> directions) {
+        Coordinates[] crossings = route.clone();
+        if (!forward)
+            Collections.reverse(Arrays.asList(crossings));
+        List<Map<Coordinates, Segment[]>> entered = forward ? segmentsByStart : segmentsByEnd;
+
+        Map<Coordinates, Segment[]> admission = new HashMap<>();
+        for (int i = 0; i < crossings.length; i++) {
+            Map<ReentrantLock, Segment> chain = new IdentityHashMap<>();
+            int reach = i;
+            for (int j = i; j <= reach && j < crossings.length; j++) {
+                // a chain starts only at a crossing where the train enters a segment
+                if (j == i && getTrainSegments(train, crossings[j], entered).length == 0)
+                    break;
+                for (Segment s : getTrainSegments(train, crossings[j], entered)) {
+                    chain.putIfAbsent(s.getLock(), s);
+                    Coordinates exit = forward ? s.getEnd() : s.getStart();
+                    for (int k = j; k < crossings.length; k++) {
+                        if (crossings[k].equals(exit)) {
+                            reach = Math.max(reach, k);
+                            break;
+                        }
+                    }
                 }
-            } else {
-                if (s.isTrainCrossing(train) && s.getStart().equals(end)) {
-                    if (s.getLock().isHeldByCurrentThread())
-                        s.unlockSegment();
+            }
+            if (!chain.isEmpty()) {
+                Segment[] sorted = chain.values().toArray(new Segment[0]);
+                Arrays.sort(sorted, Comparator.comparingInt(Segment::getLockOrder));
+                if (admission.putIfAbsent(crossings[i], sorted) == null)
+                    directions.put(crossings[i], getDirections(sorted, crossings, i, reach, forward));
+            }
+        }
+        return admission;
+    }
+
+    /**
+     * Computes the directions a train moves through the segments it takes at a crossing.
+     * A train turning around at the end of its route inside the segments has to take them alone.
+     *
+     * @param segments segments the train takes at the crossing
+     * @param crossings crossings of the train's route in the order the train passes them
+     * @param start     position of the crossing in crossings
+     * @param reach     position of the last crossing the train leaves the segments at
+     * @param forward   direction the train is heading
+     * @return directions of the train, 0 for every segment the train has to take alone
+     */
+    private int[] getDirections(Segment[] segments, Coordinates[] crossings, int start, int reach, boolean forward) {
+        int[] directions = new int[segments.length];
+        if (reach >= crossings.length - 1)
+            return directions;
+        for (int i = 0; i < segments.length; i++) {
+            Coordinates from = forward ? segments[i].getStart() : segments[i].getEnd();
+            Coordinates to = forward ? segments[i].getEnd() : segments[i].getStart();
+            if (!from.equals(to)) {
+                // the copies of a segment have the same ends, the first copy tells which way is 1
+                directions[i] = from.equals(segmentsByOrder[segments[i].getLockOrder()].getStart()) ? 1 : -1;
+                continue;
+            }
+            // a segment of one crossing is shared by the trains passing it the same way
+            for (int k = start; k <= reach; k++) {
+                if (crossings[k].equals(from)) {
+                    if (k > 0)
+                        directions[i] = 2 + 4 * getHeading(crossings[k - 1], from) + getHeading(from, crossings[k + 1]);
+                    break;
                 }
             }
         }
+        return directions;
+    }
+
+    /**
+     * @return 0, 1, 2 or 3 for moving up, right, down or left from one crossing to the next one
+     */
+    private static int getHeading(Coordinates from, Coordinates to) {
+        if (from.getRow() != to.getRow())
+            return to.getRow() < from.getRow() ? 0 : 2;
+        return to.getCol() > from.getCol() ? 1 : 3;
+    }
+
+
+    /**
+     * Returns the metrics of the segments and the trains using them.
+     *
+     * @return metrics recorded by this object
+     */
+    public SimulationMetrics getMetrics() {
+        return metrics;
     }
 
 
@@ -0,0 +1,103 @@
+package metro.algorithm.map;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the trains of a threaded simulation against absolute deadlines.
+ * <p>
+ * A train sleeping a fixed time after every tile runs slower than set: the time spent moving, waiting for the locks
+ * and the overshoot of every sleep add up. Here every tick is scheduled one period after the previous deadline,
+ * not after the moment the train woke up, so the errors don't accumulate and the train keeps its speed.
+ * <p>
+ * The periods are divided by a global time scale, e.g. with a scale of 10 the simulation runs 10 times faster
+ * than real time. A train that has waited for a segment or was paused is resynchronized, so it doesn't rush
+ * through the next tiles to catch up with its old schedule.
+ *
+ * @see TunnelsMapMonitor#moveToNextCrossing(Coordinates, Coordinates, int, boolean)
+ */
+public class SimulationClock {
+    /**
+     * Longest delay in ns a train catches up with. A train late by more, e.g. after a long GC pause,
+     * starts a new schedule instead of moving many tiles without a break.
+     */
+    private static final long MAX_LAG_NANOS = 50_000_000;
+
+    /**
+     * Deadline of the last tick of each train in ns (System.nanoTime()), indexed by train id.
+     * Every element is used only by its train's thread.
+     */
+    private final long[] deadlines;
+
+    /**
+     * Number of simulated ms per real ms
+     */
+    private volatile double timeScale = 1;
+
+    /**
+     * @param trains number of trains
+     */
+    SimulationClock(int trains) {
+        deadlines = new long[trains];
+        long now = System.nanoTime();
+        for (int i = 0; i < trains; i++)
+            deadlines[i] = now;
+    }
+
+    /**
+     * Waits until the next tick of the train, one period after its previous one.
+     * Called by the train's thread after every tile.
+     *
+     * @param train     id of the train
+     * @param sleepTime simulated time in ms the train spends on one tile
+     * @throws InterruptedException if the train is interrupted while waiting
+     */
+    void awaitTick(int train, int sleepTime) throws InterruptedException {
+        long deadline = deadlines[train] + toNanos(sleepTime);
+        long now = System.nanoTime();
+        if (now - deadline > MAX_LAG_NANOS)
+            deadline = now;
+        deadlines[train] = deadline;
+
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    /**
+     * Starts a new schedule of the train at the current time, after it waited for a segment or was paused.
+     * Called by the train's thread.
+     *
+     * @param train id of the train
+     */
+    public void resynchronize(int train) {
+        deadlines[train] = System.nanoTime();
+    }
+
+    private long toNanos(int sleepTime) {
+        return (long) (sleepTime * 1_000_000L / timeScale);
+    }
+
+    /**
+     * Sets the speed of the simulation, used from the next tick of every train.
+     *
+     * @param timeScale number of simulated ms per real ms, e.g. 10 runs the simulation 10 times faster
+     * @throws IllegalArgumentException if the scale isn't positive
+     */
+    public void setTimeScale(double timeScale) {
+        if (!(timeScale > 0))
+            throw new IllegalArgumentException("The time scale has to be positive: " + timeScale);
+        this.timeScale = timeScale;
+    }
+
+    /**
+     * @return number of simulated ms per real ms
+     */
+    public double getTimeScale() {
+        return timeScale;
+    }
+}
@@ -0,0 +1,124 @@
+package metro.algorithm.map;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owner of every tile of the map, used to admit the trains tile by tile in the AdmissionMode.TILES mode.
+ * <p>
+ * A tile is reserved with a single compare-and-set of its owner, so the trains reserving different tiles never
+ * wait for each other. A train waiting for a tile sleeps on the condition of one of a few stripes of the tiles,
+ * and the train releasing the tile signals it only if some train waits on the stripe.
+ *
+ * @see AdmissionMode#TILES
+ */
+public class TileReservations {
+    /**
+     * Number of locks the waiting trains are spread over
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * Train owning each tile, or TunnelsMapMonitor.NO_TRAIN, indexed by the packed cell index
+     */
+    private final AtomicIntegerArray owners;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final Condition[] released = new Condition[STRIPES];
+    /**
+     * Number of trains waiting for a tile of each stripe
+     */
+    private final AtomicIntegerArray waiters = new AtomicIntegerArray(STRIPES);
+
+    /**
+     * Creates a table without reserved tiles.
+     *
+     * @param cells number of tiles of the map
+     */
+    public TileReservations(int cells) {
+        owners = new AtomicIntegerArray(cells);
+        clear();
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+            released[i] = locks[i].newCondition();
+        }
+    }
+
+    /**
+     * Reserves the tile for the train if it's free.
+     *
+     * @param cell  packed index of the tile
+     * @param train id of the train
+     * @return true if the train owns the tile now, also if it did before
+     */
+    public boolean tryReserve(int cell, int train) {
+        int owner = owners.get(cell);
+        return owner == train || (owner == TunnelsMapMonitor.NO_TRAIN
+                && owners.compareAndSet(cell, TunnelsMapMonitor.NO_TRAIN, train));
+    }
+
+    /**
+     * Reserves the tile for the train, waiting until its owner releases it.
+     *
+     * @param cell  packed index of the tile
+     * @param train id of the train
+     * @return time in ns the train waited, 0 if it didn't wait
+     * @throws InterruptedException if the train is interrupted while waiting
+     */
+    public long reserve(int cell, int train) throws InterruptedException {
+        if (tryReserve(cell, train))
+            return 0;
+        long waitStart = System.nanoTime();
+        int stripe = cell % STRIPES;
+        locks[stripe].lock();
+        waiters.incrementAndGet(stripe);
+        try {
+            // the owner releases the tile before it checks the waiters, so a wakeup can't be missed
+            while (!tryReserve(cell, train))
+                released[stripe].await();
+        } finally {
+            waiters.decrementAndGet(stripe);
+            locks[stripe].unlock();
+        }
+        return System.nanoTime() - waitStart;
+    }
+
+    /**
+     * Releases the tile if it's owned by the train and wakes the trains waiting for it.
+     *
+     * @param cell  packed index of the tile
+     * @param train id of the train
+     * @return true if the tile was released
+     */
+    public boolean release(int cell, int train) {
+        if (!owners.compareAndSet(cell, train, TunnelsMapMonitor.NO_TRAIN))
+            return false;
+        int stripe = cell % STRIPES;
+        if (waiters.get(stripe) > 0) {
+            locks[stripe].lock();
+            try {
+                released[stripe].signalAll();
+            } finally {
+                locks[stripe].unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param cell packed index of the tile
+     * @return id of the train owning the tile, or TunnelsMapMonitor.NO_TRAIN
+     */
+    public int getOwner(int cell) {
+        return owners.get(cell);
+    }
+
+    /**
+     * Releases every tile. Can be called only when no train runs.
+     */
+    void clear() {
+        for (int i = 0; i < owners.length(); i++)
+            owners.set(i, TunnelsMapMonitor.NO_TRAIN);
+    }
+}
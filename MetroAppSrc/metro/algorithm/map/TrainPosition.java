@@ -0,0 +1,72 @@
+package metro.algorithm.map;
+
+/**
+ * Positions of the wagons of one train.
+ * <p>
+ * Each wagon is stored as a packed cell index (row * width + col) in a ring buffer,
+ * so moving the train by one tile only moves the head pointer and doesn't allocate anything.
+ */
+public class TrainPosition {
+    /**
+     * Cells of the wagons. The head is at cells[head], the next wagons follow cyclically.
+     */
+    private final int[] cells;
+    /**
+     * Index of the head wagon in the cells array
+     */
+    private int head = 0;
+
+    /**
+     * @param wagons array of packed cell indexes of the wagons, starting with the head
+     */
+    public TrainPosition(int[] wagons) {
+        cells = wagons.clone();
+    }
+
+    /**
+     * Moves the head to the given cell, every other wagon follows the one before it.
+     *
+     * @param nextHeadCell cell the head moves to
+     * @return cell the tail wagon left
+     */
+    public int advance(int nextHeadCell) {
+        head = head == 0 ? cells.length - 1 : head - 1;
+        int oldTail = cells[head];
+        cells[head] = nextHeadCell;
+        return oldTail;
+    }
+
+    /**
+     * Checks if any wagon of the train is on the given cell.
+     *
+     * @param cell packed cell index
+     * @return true if a wagon is on the cell
+     */
+    public boolean occupies(int cell) {
+        for (int c : cells) {
+            if (c == cell)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cell of a wagon.
+     *
+     * @param wagon index of the wagon, 0 is the head
+     * @return packed cell index
+     */
+    public int getWagon(int wagon) {
+        int i = head + wagon;
+        return cells[i < cells.length ? i : i - cells.length];
+    }
+
+    /**
+     * Returns number of wagons of the train
+     *
+     * @return number of wagons
+     */
+    public int getLength() {
+        return cells.length;
+    }
+}
@@ -1,90 +1,233 @@
 package metro.algorithm.map;
 
-import java.util.LinkedList;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Class holding the 2D array of the tunnel's map.
+ * Class holding the tunnel's map.
  * <p>
- * It doesn't have any methods as it was created
- * only to separate the 2D map array from the monitor (for clarity)
+ * It doesn't have any logic as it was created
+ * only to separate the map from the monitor (for clarity)
  * <p>
- * You can access the map via the public map variable.
+ * The tiles are stored in a flat byte buffer (one byte per tile, index = row * width + col),
+ * which takes a fraction of the memory of an array of references and keeps neighbouring tiles close in memory.
+ * The buffer of a map loaded from a binary file is memory-mapped, so even very large maps don't take the heap.
+ * <p>
+ * Everything the simulations need to know about the layout (the entrances to the stations, the crossing graph
+ * and the shortest routes) is computed once, when the map is created, and shared by every simulation on it.
+ *
+ * @see TunnelsMapLoader
  */
-class TunnelsMap {
+public class TunnelsMap {
+    /**
+     * The rows of the default tunnel's map.
+     * <p>
+     * Each tile is defined by the first letter of one of the enum FieldTypes values:
+     * E - empty, W - wall, S - station.
+     */
+    static final String[] DEFAULT_LAYOUT = {
+            "SEEEEEEEEES",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EEEEEEEEEEE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "EWWWWEWWWWE",
+            "SEEEEEEEEES",
+    };
+
+    /**
+     * FieldTypes values by their byte codes (ordinals)
+     */
+    private static final FieldTypes[] FIELD_TYPES = FieldTypes.values();
+
     /**
      * Width of the map
      */
-    public static final int WIDTH = 11;
+    private final int width;
     /**
      * Height of the map
      */
-    public static final int HEIGHT = 17;
+    private final int height;
+
+    /**
+     * Array of coordinates of stations on the map
+     */
+    private final Coordinates[] stations;
 
     /**
-     * Used to shorten the enum values and make the map more
-     * appealing to the human eye.
+     * The tiles of the map, each holding the ordinal of its FieldTypes value.
      */
-    public static FieldTypes E = FieldTypes.EMPTY, W = FieldTypes.WALL,
-            S = FieldTypes.STATION;
+    private final ByteBuffer map;
 
     /**
-     * Array of coordinates of stations on the map
+     * Packed cell indexes of the entrances to the stations, station after station
      */
-    public Coordinates[] stations = {
-            new Coordinates(0, 0),
-            new Coordinates(0, 10),
-            new Coordinates(16, 0),
-            new Coordinates(16, 10)
-    };
+    private final int[] entranceCells;
+    /**
+     * Entrances of the station s are entranceCells[entranceStarts[s]] ... entranceCells[entranceStarts[s + 1] - 1]
+     */
+    private final int[] entranceStarts;
 
     /**
-     * The 2D array representing the tunnel's map.
-     * <p>
-     * Each tile is defined by one of the enum FieldTypes values.
-     */
-    public FieldTypes[][] map = {
-            {S, E, E, E, E, E, E, E, E, E, S},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, E, E, E, E, E, E, E, E, E, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {E, W, W, W, W, E, W, W, W, W, E},
-            {S, E, E, E, E, E, E, E, E, E, S},
-    };
+     * Router of the map, with the crossing graph and the shortest routes computed when the map is loaded
+     */
+    private final Router router;
+
+    /**
+     * Creates the map and computes everything the simulations need to know about it:
+     * the entrances to the stations, the crossing graph and the shortest routes.
+     *
+     * @param width    number of columns
+     * @param height   number of rows
+     * @param map      width * height tiles, each holding the ordinal of its FieldTypes value
+     * @param stations coordinates of the stations on the map
+     */
+    TunnelsMap(int width, int height, ByteBuffer map, Coordinates[] stations) {
+        this.width = width;
+        this.height = height;
+        this.map = map;
+        this.stations = stations;
+
+        entranceStarts = new int[stations.length + 1];
+        int[] cells = new int[stations.length * 8];
+        int entrances = 0;
+        for (int s = 0; s < stations.length; s++) {
+            entranceStarts[s] = entrances;
+            entrances = addStationEntrances(stations[s], cells, entrances);
+        }
+        entranceStarts[stations.length] = entrances;
+        entranceCells = Arrays.copyOf(cells, entrances);
+
+        router = new Router(new CrossingGraph(this));
+    }
+
+    /**
+     * Returns the default 17x11 map with four stations in the corners.
+     * The map never changes, so every simulation shares the same instance (and its router's cache).
+     *
+     * @return the default map
+     */
+    public static TunnelsMap getDefault() {
+        return DefaultMap.INSTANCE;
+    }
+
+    /**
+     * Creates the default 17x11 map with four stations in the corners.
+     *
+     * @return new instance of the default map
+     */
+    public static TunnelsMap createDefault() {
+        try {
+            return TunnelsMapLoader.readText(new BufferedReader(new StringReader(String.join("\n", DEFAULT_LAYOUT))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
     /**
-     * Creates an array of tiles marked as empty adjacent to the all stations
+     * Returns the type of the tile.
+     *
+     * @param cell packed index of the tile (row * width + col)
+     * @return EMPTY, WALL or STATION
+     */
+    public FieldTypes getField(int cell) {
+        return FIELD_TYPES[map.get(cell)];
+    }
+
+    /**
+     * Returns the type of the tile.
+     *
+     * @param row row of the tile
+     * @param col column of the tile
+     * @return EMPTY, WALL or STATION
+     */
+    public FieldTypes getField(int row, int col) {
+        return getField(row * width + col);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the stations of the map.
+     *
+     * @return copy of the array of coordinates of stations
+     */
+    public Coordinates[] getStations() {
+        return stations.clone();
+    }
+
+    /**
+     * Returns the router finding the shortest routes on this map.
+     * It's created with the map, so every simulation on this map shares its precomputed routes.
+     *
+     * @return router of the map
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    /**
+     * Returns the buffer of the tiles, used to save the map.
+     *
+     * @return read-only view of the tiles
+     */
+    ByteBuffer getTiles() {
+        return map.asReadOnlyBuffer();
+    }
+
+    /**
+     * Creates a list of tiles marked as empty adjacent to the all stations (stations' entrances)
      *
      * @return coordinates of tiles adjacent to all stations
      */
     public List<Coordinates> getStationsEntrances() {
-        List<Coordinates> stationsEntraces = new LinkedList<>();
-
-        for (Coordinates station : stations)
-            stationsEntraces.addAll(getStationEntrances(station));
+        List<Coordinates> stationsEntrances = new ArrayList<>(entranceCells.length);
+        for (int cell : entranceCells)
+            stationsEntrances.add(new Coordinates(cell / width, cell % width));
+        return stationsEntrances;
+    }
 
-        return stationsEntraces;
+    /**
+     * Returns the packed cell indexes of the entrances to one station.
+     *
+     * @param station index of the station in the array returned by getStations()
+     * @return cells of tiles adjacent to the station
+     */
+    public int[] getStationEntranceCells(int station) {
+        return Arrays.copyOfRange(entranceCells, entranceStarts[station], entranceStarts[station + 1]);
     }
 
     /**
-     * Creates an array of tiles marked as empty adjacent to the given station (station's entrance)
+     * Finds the tiles marked as empty adjacent to the given station (station's entrances)
      *
-     * @param station coordinates of a station.
-     * @return coordinates of tiles adjacent to one station
+     * @param station coordinates of a station
+     * @param cells   array the packed cell indexes of the entrances are added to
+     * @param count   number of cells already in the array
+     * @return number of cells in the array after adding the station's entrances
      */
-    private List<Coordinates> getStationEntrances(Coordinates station) {
-        List<Coordinates> stationEntrances = new LinkedList<>();
+    private int addStationEntrances(Coordinates station, int[] cells, int count) {
         int[] possibleVectors = {-1, 0, 1};
         int row, col;
 
@@ -94,14 +237,21 @@ class TunnelsMap {
                     row = station.getRow() + vectorRow;
                     col = station.getCol() + vectorCol;
 
-                    if (row >= 0 && row < TunnelsMap.HEIGHT)
-                        if (col >= 0 && col < TunnelsMap.WIDTH)
-                            if (map[row][col] != FieldTypes.WALL) {
-                                stationEntrances.add(new Coordinates(row, col));
+                    if (row >= 0 && row < height)
+                        if (col >= 0 && col < width)
+                            if (getField(row, col) != FieldTypes.WALL) {
+                                cells[count++] = row * width + col;
                             }
                 }
             }
         }
-        return stationEntrances;
+        return count;
+    }
+
+    /**
+     * Holder of the default map, created when it's needed for the first time
+     */
+    private static class DefaultMap {
+        private static final TunnelsMap INSTANCE = createDefault();
     }
 }
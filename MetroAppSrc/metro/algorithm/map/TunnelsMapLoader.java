@@ -0,0 +1,267 @@
+package metro.algorithm.map;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads and writes tunnel's maps.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ * <li>text - one line per row, each tile defined by the first letter of one of the enum FieldTypes values
+ * (E - empty, W - wall, S - station). Every row has to have the same length.
+ * Empty lines and lines starting with '#' are ignored.</li>
+ * <li>binary - the header (the "METROMAP" magic, format version, width, height, number of stations
+ * and the (row, col) pairs of the stations, all big-endian ints) followed by width * height bytes of the tiles,
+ * each holding the ordinal of its FieldTypes value. The tiles aren't copied when loading, they're memory-mapped,
+ * so they don't take any heap. They're read once to check them, and the operating system pages them out
+ * and back in when needed.</li>
+ * </ul>
+ * Either way, the loaded map computes its crossing graph and routes once, before it's returned.
+ *
+ * @see TunnelsMap
+ */
+public final class TunnelsMapLoader {
+    /**
+     * First bytes of every binary map file
+     */
+    private static final byte[] MAGIC = "METROMAP".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Version of the binary format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the fixed part of the binary header: magic, version, width, height and number of stations
+     */
+    private static final int HEADER_SIZE = MAGIC.length + 4 * Integer.BYTES;
+
+    /**
+     * Number of rows of a text map the tiles' buffer has room for at first
+     */
+    private static final int MIN_ROWS = 64;
+
+    private TunnelsMapLoader() {
+    }
+
+    /**
+     * Loads the map from a file, detecting its format by the first bytes.
+     *
+     * @param file path to a text or binary map file
+     * @return loaded map
+     * @throws IOException if the file can't be read or isn't a valid map
+     */
+    public static TunnelsMap load(Path file) throws IOException {
+        if (isBinary(file))
+            return loadBinary(file);
+        return loadText(file);
+    }
+
+    /**
+     * Loads the map from a text file.
+     *
+     * @param file path to the text map file
+     * @return loaded map
+     * @throws IOException if the file can't be read or isn't a valid map
+     */
+    public static TunnelsMap loadText(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            // every tile takes a byte of the file, so the tiles' buffer never has to grow
+            return readText(reader, Files.size(file));
+        }
+    }
+
+    /**
+     * Reads the map in the text format.
+     *
+     * @param reader source of the map
+     * @return read map
+     * @throws IOException if the map can't be read or isn't valid
+     */
+    static TunnelsMap readText(BufferedReader reader) throws IOException {
+        return readText(reader, 0);
+    }
+
+    /**
+     * Reads the map in the text format. Every row is written to the tiles as soon as it's read,
+     * so only one row is kept as text.
+     *
+     * @param reader   source of the map
+     * @param maxTiles upper bound of the number of tiles the tiles' buffer is allocated for, e.g. the size
+     *                 of the file, or 0 if it's unknown and the buffer grows with the rows
+     * @return read map
+     * @throws IOException if the map can't be read or isn't valid
+     */
+    static TunnelsMap readText(BufferedReader reader, long maxTiles) throws IOException {
+        // the width is set by the first row
+        ByteBuffer tiles = null;
+        List<Coordinates> stations = new ArrayList<>();
+        int width = 0;
+        int height = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            if (tiles == null) {
+                width = line.length();
+                checkSize(width, 1);
+                long capacity = maxTiles > 0 ? maxTiles : (long) width * MIN_ROWS;
+                tiles = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE));
+            } else if (line.length() != width) {
+                throw new IOException("Row " + (height + 1) + " has " + line.length() + " tiles, expected " + width);
+            }
+            checkSize(width, height + 1);
+            if (tiles.remaining() < width) {
+                // the buffer grows by a half, so it never takes more than a half of the tiles extra
+                long capacity = Math.min((long) tiles.capacity() * 3 / 2, Integer.MAX_VALUE);
+                tiles = ByteBuffer.allocate((int) Math.max(capacity, tiles.position() + width)).put(tiles.flip());
+            }
+            for (int col = 0; col < width; col++) {
+                FieldTypes field;
+                switch (line.charAt(col)) {
+                    case 'E' -> field = FieldTypes.EMPTY;
+                    case 'W' -> field = FieldTypes.WALL;
+                    case 'S' -> {
+                        field = FieldTypes.STATION;
+                        stations.add(new Coordinates(height, col));
+                    }
+                    default -> throw new IOException("Unknown tile '" + line.charAt(col)
+                            + "' at (" + height + ", " + col + ")");
+                }
+                tiles.put((byte) field.ordinal());
+            }
+            height++;
+        }
+        if (tiles == null)
+            throw new IOException("The map has no tiles");
+        return new TunnelsMap(width, height, tiles.flip(), stations.toArray(new Coordinates[0]));
+    }
+
+    /**
+     * Loads the map from a binary file. The tiles are memory-mapped, not read.
+     *
+     * @param file path to the binary map file
+     * @return loaded map
+     * @throws IOException if the file can't be read or isn't a valid map
+     */
+    public static TunnelsMap loadBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(file + " is not a binary map file");
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported map format version " + version);
+            int width = header.getInt();
+            int height = header.getInt();
+            int stationCount = header.getInt();
+            checkSize(width, height);
+            long stationsSize = (long) stationCount * 2 * Integer.BYTES;
+            if (stationCount < 0 || stationCount > (long) width * height || stationsSize > Integer.MAX_VALUE)
+                throw new IOException("Invalid number of stations " + stationCount);
+            long tilesOffset = HEADER_SIZE + stationsSize;
+            long tilesSize = (long) width * height;
+            if (channel.size() < tilesOffset + tilesSize)
+                throw new IOException(file + " is truncated");
+
+            // the mapping stays valid after the channel is closed
+            ByteBuffer tiles = channel.map(FileChannel.MapMode.READ_ONLY, tilesOffset, tilesSize);
+            for (int cell = 0; cell < tilesSize; cell++) {
+                // a tile can't be taken by a train in a file
+                int field = tiles.get(cell) & 0xff;
+                if (field > FieldTypes.STATION.ordinal())
+                    throw new IOException("Unknown tile " + field + " at (" + cell / width + ", " + cell % width + ")");
+            }
+
+            ByteBuffer stationBytes = ByteBuffer.allocate((int) stationsSize);
+            readFully(channel, stationBytes, HEADER_SIZE);
+            Coordinates[] stations = new Coordinates[stationCount];
+            for (int i = 0; i < stationCount; i++) {
+                stations[i] = new Coordinates(stationBytes.getInt(), stationBytes.getInt());
+                if (stations[i].getRow() < 0 || stations[i].getRow() >= height
+                        || stations[i].getCol() < 0 || stations[i].getCol() >= width)
+                    throw new IOException("Station " + stations[i] + " is outside of the map");
+                if (tiles.get(stations[i].getRow() * width + stations[i].getCol()) != FieldTypes.STATION.ordinal())
+                    throw new IOException("Station " + stations[i] + " isn't on a station tile");
+            }
+            return new TunnelsMap(width, height, tiles, stations);
+        }
+    }
+
+    /**
+     * Saves the map in the binary format.
+     *
+     * @param map  map to save
+     * @param file path to the file, replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public static void writeBinary(TunnelsMap map, Path file) throws IOException {
+        Coordinates[] stations = map.getStations();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + stations.length * 2 * Integer.BYTES)
+                .order(ByteOrder.BIG_ENDIAN);
+        header.put(MAGIC)
+                .putInt(VERSION)
+                .putInt(map.getWidth())
+                .putInt(map.getHeight())
+                .putInt(stations.length);
+        for (Coordinates station : stations)
+            header.putInt(station.getRow()).putInt(station.getCol());
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer tiles = map.getTiles();
+            tiles.rewind();
+            while (header.hasRemaining() || tiles.hasRemaining())
+                channel.write(new ByteBuffer[]{header, tiles});
+        }
+    }
+
+    /**
+     * Checks if the file starts with the binary map magic.
+     */
+    private static boolean isBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) < 0)
+                    return false;
+            }
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of the map file");
+            position += read;
+        }
+        target.flip();
+    }
+
+    /**
+     * The tiles are indexed with ints, so a map can have at most Integer.MAX_VALUE tiles.
+     */
+    private static void checkSize(int width, int height) throws IOException {
+        if (width <= 0 || height <= 0 || (long) width * height > Integer.MAX_VALUE)
+            throw new IOException("Invalid map size " + width + "x" + height);
+    }
+}
@@ -1,276 +1,844 @@
 package metro.algorithm.map;
 
+import metro.algorithm.metrics.SimulationMetrics;
+import metro.algorithm.metrics.TileMetrics;
+import metro.algorithm.metrics.TrainMetrics;
+
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Class used to access the map of the tunnels.
  * It uses (x, y) coordinates specified in Coordinates class instances.
  * It allows thread-safe moving of the trains and reading the state of the map.
+ * <p>
+ * Trains update only the tiles they move across, so they don't wait for each other or for the readers.
+ *
+ * @see OccupancyGrid
  */
 public class TunnelsMapMonitor {
     /**
-     * Instance of a package-private class TunnelsMap
+     * Layout of the tunnels the trains move on
      */
-    TunnelsMap mapWrapper = new TunnelsMap();
+    final TunnelsMap mapWrapper;
+
+    /**
+     * Width of the map, cached for the packed cell index computations
+     */
+    private final int width;
+
+    /**
+     * Value of the occupants' array for tiles without a train
+     */
+    public static final int NO_TRAIN = OccupancyGrid.NO_TRAIN;
+
+    /**
+     * Id of the train occupying each tile of the map, or NO_TRAIN
+     */
+    final OccupancyGrid occupants;
+
+    /**
+     * The latest snapshot of the trains' positions
+     */
+    private final AtomicReference<MapSnapshot> latestSnapshot = new AtomicReference<>();
+
+    /**
+     * Arrays of the closed snapshots, reused by the next snapshots
+     */
+    private final Queue<int[]> snapshotPool = new ConcurrentLinkedQueue<>();
+
     /**
-     * the map is defined in the TunnelsMap package-private class
+     * Tiles whose occupant changed since the renderer last collected them
      */
-    FieldTypes[][] tunnelsMap = mapWrapper.map;
+    private final ChangedCells changedCells;
 
     /**
-     * Lock used to synchronize travelling trains with the GUI map representation
+     * How often the trains entered each tile and how long they waited to enter it
      */
-    ReadWriteLock ioLock = new ReentrantReadWriteLock();
+    private final TileMetrics tileMetrics;
 
     /**
      * Used for storing and synchronization of shared route segments
      */
     SegmentLock segmentLock;
 
-    private int t1SleepTime = 100;
-    private int t2SleepTime = 200;
-    private int t3SleepTime = 300;
+    /**
+     * Positions of the trains' wagons, indexed by train id
+     */
+    private TrainPosition[] positions;
 
+    /**
+     * Routes of the trains the shared segments were created for, indexed by train id
+     */
+    private Coordinates[][] trainRoutes;
 
     /**
-     * Constructor of TunnelsMapMonitor class.
+     * Default time in ms each train waits after moving to the next tile.
+     * Trains with higher ids take the values cyclically.
+     */
+    private static final int[] DEFAULT_SLEEP_TIMES = {100, 200, 300};
+
+    /**
+     * Time in ms each train waits after moving to the next tile, indexed by train id
+     */
+    private int[] sleepTimes;
+
+    /**
+     * Paces the trains, one tick per tile
+     */
+    private SimulationClock clock;
+
+    /**
+     * Stops the trains at their next tile while the simulation is paused
+     */
+    private PauseGate pauseGate;
+
+    /**
+     * Listeners notified about the moves of the trains.
+     * The array is replaced on every change, so the trains read it without locking.
+     */
+    private volatile MapChangeListener[] changeListeners = new MapChangeListener[0];
+
+    /**
+     * Receives every move of the trains, null if they aren't recorded
+     */
+    private volatile EventRecorder eventRecorder;
+
+    /**
+     * How the trains are admitted into the shared parts of their routes
+     */
+    private AdmissionMode admissionMode = AdmissionMode.SEGMENTS;
+
+    /**
+     * Owners of the tiles in the AdmissionMode.TILES mode, null in the AdmissionMode.SEGMENTS mode
+     */
+    private volatile TileReservations tileReservations;
+
+    /**
+     * Tiles each train reserved ahead of its head: lookaheadLengths[train] tiles starting at lookaheadStarts[train],
+     * lookaheadSteps[train] apart, indexed by train id. Every element is used only by its train's thread.
+     */
+    private int[] lookaheadStarts;
+    private int[] lookaheadSteps;
+    private int[] lookaheadLengths;
+
+
+    /**
+     * Constructor of TunnelsMapMonitor class using the default map.
      *
-     * @param trains an array of trains.
-     *               Each train is defined by an array of Coordinates values of its wagons.
+     * @param trains      an array of trains, indexed by train id.
+     *                    Each train is defined by an array of Coordinates values of its wagons.
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
      */
     public TunnelsMapMonitor(Coordinates[][] trains, Coordinates[][] trainRoutes) {
+        this(TunnelsMap.getDefault(), trains, trainRoutes);
+    }
+
+    /**
+     * Constructor of TunnelsMapMonitor class.
+     *
+     * @param map         layout of the tunnels
+     * @param trains      an array of trains, indexed by train id.
+     *                    Each train is defined by an array of Coordinates values of its wagons.
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
+     */
+    public TunnelsMapMonitor(TunnelsMap map, Coordinates[][] trains, Coordinates[][] trainRoutes) {
+        mapWrapper = map;
+        width = map.getWidth();
+        occupants = new OccupancyGrid(map.getWidth(), map.getHeight());
+        changedCells = new ChangedCells(map.getWidth() * map.getHeight());
+        tileMetrics = new TileMetrics(map.getWidth() * map.getHeight());
+        addTrains(trains);
+        this.trainRoutes = trainRoutes;
+        segmentLock = new SegmentLock(createSharedSegments(trainRoutes), trainRoutes);
+    }
+
+    /**
+     * Creates the state of the given trains and adds them to the map.
+     */
+    private void addTrains(Coordinates[][] trains) {
+        sleepTimes = new int[trains.length];
+        positions = new TrainPosition[trains.length];
+        clock = new SimulationClock(trains.length);
+        pauseGate = new PauseGate(trains.length);
+        lookaheadStarts = new int[trains.length];
+        lookaheadSteps = new int[trains.length];
+        lookaheadLengths = new int[trains.length];
+        TileReservations reservations = tileReservations;
         // adding trains to the map
-        markTrain(trains[0], FieldTypes.T1);
-        markTrain(trains[1], FieldTypes.T2);
-        markTrain(trains[2], FieldTypes.T3);
+        for (int i = 0; i < trains.length; i++) {
+            sleepTimes[i] = DEFAULT_SLEEP_TIMES[i % DEFAULT_SLEEP_TIMES.length];
+            int[] wagons = new int[trains[i].length];
+            for (int j = 0; j < wagons.length; j++)
+                wagons[j] = cellOf(trains[i][j]);
+            positions[i] = new TrainPosition(wagons);
+            for (int wagon : wagons) {
+                setOccupant(wagon, i, true);
+                if (reservations != null)
+                    reservations.tryReserve(wagon, i);
+            }
+        }
+    }
+
+    /**
+     * Replaces the trains and their routes, keeping the map's grid, the metrics of the tiles and the listeners.
+     * The shared segments are reused if the routes didn't change, otherwise they're created for the new routes.
+     * <p>
+     * Can be called only when no train runs and every train has released its segments.
+     * The pause gate and the clock are replaced, the gate is open and every train has its default speed.
+     * The admission mode is kept.
+     *
+     * @param trains      an array of trains, indexed by train id.
+     *                    Each train is defined by an array of Coordinates values of its wagons.
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
+     * @throws IllegalStateException if a shared segment is still held by a train
+     */
+    public void reset(Coordinates[][] trains, Coordinates[][] trainRoutes) {
+        reset(trains, trainRoutes, Arrays.deepEquals(trainRoutes, this.trainRoutes)
+                ? segmentLock : new SegmentLock(createSharedSegments(trainRoutes), trainRoutes));
+    }
+
+    /**
+     * Replaces the trains and their routes like reset(trains, trainRoutes), with the given shared segments.
+     *
+     * @param trains      an array of trains, indexed by train id.
+     *                    Each train is defined by an array of Coordinates values of its wagons.
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
+     * @param segmentLock the current shared segments if the routes didn't change,
+     *                    otherwise the shared segments of the new routes, see createSegmentLock()
+     * @throws IllegalStateException if a shared segment is still held by a train
+     */
+    public void reset(Coordinates[][] trains, Coordinates[][] trainRoutes, SegmentLock segmentLock) {
+        if (segmentLock == this.segmentLock)
+            segmentLock.reset();
+        else
+            this.segmentLock = segmentLock;
+        segmentLock.setAdmissionMode(admissionMode);
+        this.trainRoutes = trainRoutes;
+        eventRecorder = null;
+        if (tileReservations != null)
+            tileReservations.clear();
+
+        for (int i = 0; i < positions.length; i++) {
+            for (int j = 0; j < positions[i].getLength(); j++)
+                setOccupant(positions[i].getWagon(j), i, false);
+        }
+        // the heat of every tile changes, so the tiles are repainted
+        for (int cell = 0; cell < getWidth() * getHeight(); cell++) {
+            if (tileMetrics.getEntries(cell) != 0 || tileMetrics.getWaitNanos(cell) != 0)
+                changedCells.mark(cell);
+        }
+        tileMetrics.clear();
+        addTrains(trains);
+        for (MapChangeListener listener : changeListeners)
+            listener.mapChanged();
+    }
+
+
+    /**
+     * Sets how the trains are admitted into the shared parts of their routes.
+     * Can be called only when no train moves or holds a segment, e.g. before the trains start.
+     *
+     * @param mode AdmissionMode.TILES to let the trains moving the same way follow each other through the shared parts
+     * @see AdmissionMode
+     */
+    public void setAdmissionMode(AdmissionMode mode) {
+        admissionMode = mode;
+        segmentLock.setAdmissionMode(mode);
+        if (mode != AdmissionMode.TILES) {
+            tileReservations = null;
+            return;
+        }
+        TileReservations reservations = new TileReservations(getWidth() * getHeight());
+        for (int train = 0; train < positions.length; train++) {
+            for (int i = 0; i < positions[train].getLength(); i++)
+                reservations.tryReserve(positions[train].getWagon(i), train);
+        }
+        tileReservations = reservations;
+    }
+
+    /**
+     * Makes every train at the start of its route hold back the trains whose routes end there until it has left.
+     * The trains start with their wagons on the first tiles of their routes without holding a segment,
+     * so otherwise a train could drive into a train which hasn't left yet. Used by the simulations before
+     * the trains start, also after reset().
+     *
+     * @throws IllegalArgumentException if the trains at the starts of their routes would hold back each other,
+     *                                  so none of them could leave
+     * @see SegmentLock#parkTrains(boolean[])
+     */
+    public void parkTrains() {
+        boolean[] atStart = new boolean[positions.length];
+        for (int train = 0; train < positions.length; train++)
+            atStart[train] = positions[train].getWagon(0) == cellOf(trainRoutes[train][0]);
+        segmentLock.parkTrains(atStart);
+    }
 
-        segmentLock = new SegmentLock(createSharedSegments(trainRoutes));
-        System.out.println("Shared segments: " + segmentLock);
-        System.out.println();
+    /**
+     * Creates the shared segments of the given routes without changing this monitor, so the routes can be checked
+     * before the trains are replaced by reset(trains, trainRoutes, segmentLock).
+     * The trains at the starts of the routes hold back the other trains, like after parkTrains().
+     *
+     * @param trainRoutes array of Coordinates arrays of train routes, indexed by train id
+     * @return shared segments of the routes
+     * @throws IllegalArgumentException if the trains at the starts of the routes would hold back each other,
+     *                                  so none of them could leave
+     */
+    public SegmentLock createSegmentLock(Coordinates[][] trainRoutes) {
+        SegmentLock lock = new SegmentLock(createSharedSegments(trainRoutes), trainRoutes);
+        boolean[] atStart = new boolean[trainRoutes.length];
+        Arrays.fill(atStart, true);
+        lock.parkTrains(atStart);
+        return lock;
     }
 
+    /**
+     * @return how the trains are admitted into the shared parts of their routes
+     */
+    public AdmissionMode getAdmissionMode() {
+        return admissionMode;
+    }
+
+    /**
+     * Returns the owners of the tiles in the AdmissionMode.TILES mode.
+     *
+     * @return reservations of the tiles, or null in the AdmissionMode.SEGMENTS mode
+     */
+    public TileReservations getTileReservations() {
+        return tileReservations;
+    }
 
     /**
      * Procedure moving the train from crossing start to crossing end
      *
      * @param start       coordinates of current crossing
      * @param end         coordinates of destination crossing
-     * @param wagons      array of Coordinates defining the individual wagons of the train.
-     * @param trainType   one of the T1, T2, T3 values of enum FieldTypes
+     * @param train       id of the train
      * @param moveForward boolean value specifying the direction the train is heading
-     * @throws InterruptedException this method uses sleep to visualize the transition in GUI
+     * @throws InterruptedException this method waits for the ticks of the clock to visualize the transition in GUI
      */
-    public void moveToNextCrossing(Coordinates start, Coordinates end, Coordinates[] wagons, FieldTypes trainType, boolean moveForward)
+    public void moveToNextCrossing(Coordinates start, Coordinates end, int train, boolean moveForward)
             throws InterruptedException {
-        boolean horizontal = start.getRow() == end.getRow();
-        boolean previousSegmentReleased = false;
-
-        segmentLock.lockTrainSegments(trainType, start, moveForward);
-
-        if (horizontal) {
-            if (start.getCol() < end.getCol()) {
-                // left to right
-                for (int i = start.getCol(); i < end.getCol(); i++) {
-                    moveTrain(wagons, new Coordinates(start.getRow(), i), trainType);
-                    if (!previousSegmentReleased && !trainIsOnCrossing(start, wagons)) {
-                        segmentLock.unlockTrainSegments(trainType, start, moveForward);
-                        previousSegmentReleased = true;
-                    }
-                    wait(trainType);
-                }
-            } else {
-                // right to left
-                for (int i = start.getCol(); i > end.getCol(); i--) {
-                    moveTrain(wagons, new Coordinates(start.getRow(), i), trainType);
-                    if (!previousSegmentReleased && !trainIsOnCrossing(start, wagons)) {
-                        segmentLock.unlockTrainSegments(trainType, start, moveForward);
-                        previousSegmentReleased = true;
-                    }
-                    wait(trainType);
-                }
+        moveToNextCrossing(start, end, train, moveForward, 0);
+    }
+
+    /**
+     * Procedure moving the train from crossing start to crossing end, starting at the given tile of the corridor.
+     * A train starting inside the corridor, e.g. restored from a checkpoint, has to hold its segments already.
+     * <p>
+     * The train passes the pause gate before every tile but the first one, the first one is guarded
+     * by the train at the crossing. In the AdmissionMode.TILES mode the train reserves the tiles ahead
+     * before every move.
+     *
+     * @param start       coordinates of current crossing
+     * @param end         coordinates of destination crossing
+     * @param train       id of the train
+     * @param moveForward boolean value specifying the direction the train is heading
+     * @param firstTile   index of the first tile to move to, 0 to start at the crossing
+     * @throws InterruptedException this method waits for the ticks of the clock to visualize the transition in GUI
+     */
+    public void moveToNextCrossing(Coordinates start, Coordinates end, int train, boolean moveForward, int firstTile)
+            throws InterruptedException {
+        int startCell = cellOf(start);
+        int step = cellStep(start, end);
+        int tiles = distance(start, end);
+        boolean previousSegmentReleased = firstTile > 0 && !trainIsOnCrossing(train, startCell);
+        TrainMetrics trainMetrics = segmentLock.getMetrics().getTrain(train);
+
+        if (firstTile == 0) {
+            long waited = segmentLock.lockTrainSegments(train, start, moveForward);
+            if (waited > 0) {
+                tileMetrics.waited(startCell, waited);
+                // the tiles after the wait take their full time, the train doesn't catch up
+                clock.resynchronize(train);
             }
-        } else {
-            if (start.getRow() < end.getRow()) {
-                // top to bottom
-                for (int i = start.getRow(); i < end.getRow(); i++) {
-                    moveTrain(wagons, new Coordinates(i, start.getCol()), trainType);
-                    if (!previousSegmentReleased && !trainIsOnCrossing(start, wagons)) {
-                        segmentLock.unlockTrainSegments(trainType, start, moveForward);
-                        previousSegmentReleased = true;
-                    }
-                    wait(trainType);
-                }
-            } else {
-                // bottom to top
-                for (int i = start.getRow(); i > end.getRow(); i--) {
-                    moveTrain(wagons, new Coordinates(i, start.getCol()), trainType);
-                    if (!previousSegmentReleased && !trainIsOnCrossing(start, wagons)) {
-                        segmentLock.unlockTrainSegments(trainType, start, moveForward);
-                        previousSegmentReleased = true;
-                    }
-                    wait(trainType);
+        }
+
+        for (int i = firstTile, cell = startCell + firstTile * step; i < tiles; i++, cell += step) {
+            if (tileReservations != null) {
+                long waited = reserveTiles(train, cell, step, Math.min(positions[train].getLength(), tiles - i));
+                if (waited > 0) {
+                    tileMetrics.waited(cell, waited);
+                    trainMetrics.waited(waited);
+                    clock.resynchronize(train);
                 }
             }
+            // counted before the move, so the listeners notified by it see the new counts
+            tileMetrics.entered(cell);
+            moveTrain(train, cell);
+            trainMetrics.tileMoved();
+            if (!previousSegmentReleased && !trainIsOnCrossing(train, startCell)) {
+                segmentLock.unlockTrainSegments(train, start, moveForward);
+                previousSegmentReleased = true;
+            }
+            wait(train);
+            if (i + 1 < tiles && pauseGate.pass(train, i + 1))
+                clock.resynchronize(train);
         }
     }
 
-    private void wait(FieldTypes train) throws InterruptedException{
-        switch (train) {
-            case T1 -> Thread.sleep(t1SleepTime);
-            case T2 -> Thread.sleep(t2SleepTime);
-            case T3 -> Thread.sleep(t3SleepTime);
-            default -> Thread.sleep(200);
-        }
+    private void wait(int train) throws InterruptedException {
+        clock.awaitTick(train, sleepTimes[train]);
     }
 
+    /**
+     * Reserves the tiles ahead of the train in the AdmissionMode.TILES mode, waiting for the tiles taken
+     * by other trains.
+     *
+     * @return time in ns the train waited, 0 if it didn't wait
+     */
+    private long reserveTiles(int train, int cell, int step, int count) throws InterruptedException {
+        setLookahead(train, cell, step, count);
+        long waited = 0;
+        for (int i = 0; i < count; i++)
+            waited += tileReservations.reserve(cell + i * step, train);
+        return waited;
+    }
 
     /**
-     * Checks if the one of the wagons is on the crossing.
+     * Non-blocking counterpart of the tile reservations of moveToNextCrossing, used by simulations running all
+     * the trains in a single thread. Reserves the tiles ahead of the train in the AdmissionMode.TILES mode,
+     * in the order the train enters them, up to the first one taken by another train.
      *
-     * @param crossing coordinates of the crossing
-     * @param wagons   coordinates of the train's wagons
-     * @return true if a wagon's coordinates are equal to crossing's
-     * false otherwise
+     * @param train id of the train
+     * @param cell  packed index of the tile the head of the train moves to next
+     * @param step  difference between the packed indexes of two consecutive tiles, see cellStep()
+     * @param count number of tiles to reserve, the train's length or fewer at the end of a corridor
+     * @return packed index of the first tile taken by another train, or -1 if the train reserved every tile
+     */
+    public int tryReserveTiles(int train, int cell, int step, int count) {
+        setLookahead(train, cell, step, count);
+        for (int i = 0; i < count; i++, cell += step) {
+            if (!tileReservations.tryReserve(cell, train))
+                return cell;
+        }
+        return -1;
+    }
+
+    /**
+     * Releases every tile the train reserved in the AdmissionMode.TILES mode, e.g. when the train's task ends.
+     *
+     * @param train id of the train
+     */
+    public void releaseTiles(int train) {
+        TileReservations reservations = tileReservations;
+        if (reservations == null)
+            return;
+        for (int i = 0; i < positions[train].getLength(); i++)
+            reservations.release(positions[train].getWagon(i), train);
+        for (int i = 0; i < lookaheadLengths[train]; i++)
+            reservations.release(lookaheadStarts[train] + i * lookaheadSteps[train], train);
+        lookaheadLengths[train] = 0;
+    }
+
+    private void setLookahead(int train, int cell, int step, int count) {
+        lookaheadStarts[train] = cell;
+        lookaheadSteps[train] = step;
+        lookaheadLengths[train] = count;
+    }
+
+    /**
+     * @return true if the tile is one of the tiles the train reserved ahead of its head
      */
-    private boolean trainIsOnCrossing(Coordinates crossing, Coordinates[] wagons) {
-        for (Coordinates wagon : wagons) {
-            if (wagon.equals(crossing))
+    private boolean isLookahead(int train, int cell) {
+        for (int i = 0; i < lookaheadLengths[train]; i++) {
+            if (lookaheadStarts[train] + i * lookaheadSteps[train] == cell)
                 return true;
         }
         return false;
     }
 
+
+    /**
+     * Checks if the one of the wagons is on the crossing.
+     *
+     * @param train    id of the train
+     * @param crossing packed cell index of the crossing
+     * @return true if a wagon is on the crossing
+     * false otherwise
+     */
+    public boolean trainIsOnCrossing(int train, int crossing) {
+        return positions[train].occupies(crossing);
+    }
+
+    /**
+     * Returns the packed index of the given tile, used to identify the tiles without allocating objects.
+     *
+     * @param field coordinates of the tile
+     * @return row * getWidth() + col
+     */
+    public int cellOf(Coordinates field) {
+        return field.getRow() * getWidth() + field.getCol();
+    }
+
+    /**
+     * Returns the coordinates of the given packed tile index.
+     *
+     * @param cell packed index of the tile
+     * @return coordinates of the tile
+     */
+    public Coordinates coordinatesOf(int cell) {
+        return new Coordinates(cell / getWidth(), cell % getWidth());
+    }
+
+    /**
+     * Returns the difference between the packed indexes of two consecutive tiles on the way from start to end.
+     *
+     * @param start coordinates of current crossing
+     * @param end   coordinates of destination crossing, in the same row or column as start
+     * @return 1 or -1 for horizontal moves, width or -width for vertical ones
+     */
+    public int cellStep(Coordinates start, Coordinates end) {
+        if (start.getRow() == end.getRow())
+            return Integer.signum(end.getCol() - start.getCol());
+        return Integer.signum(end.getRow() - start.getRow()) * getWidth();
+    }
+
+    /**
+     * Returns number of tiles between two crossings in the same row or column.
+     *
+     * @param start coordinates of current crossing
+     * @param end   coordinates of destination crossing
+     * @return number of moves needed to get from start to end
+     */
+    public static int distance(Coordinates start, Coordinates end) {
+        return Math.abs(end.getRow() - start.getRow()) + Math.abs(end.getCol() - start.getCol());
+    }
+
     /**
      * Analyzes the trains' routes and creates shared segments based on them.
-     * Every train has its own copy of a segment.
+     * Every train has its own copy of a segment, the copies of the same segment share one lock.
+     * <p>
+     * The crossings are indexed by the trains passing through them, so a route is compared only with the routes
+     * it meets, and the routes are analyzed in parallel. The segments are in the same order as when every pair
+     * of routes is compared: by the train, then by the other train and then along the route.
      *
      * @param trainRoutes array of Coordinates arrays of train routes
      * @return array of shared segments
      */
     private Segment[] createSharedSegments(Coordinates[][] trainRoutes) {
-        List<Segment> segments = new LinkedList<>();
-        FieldTypes[] trains = {FieldTypes.T1, FieldTypes.T2, FieldTypes.T3};
-
+        int[][] routeCells = new int[trainRoutes.length][];
         for (int i = 0; i < trainRoutes.length; i++) {
-            for (int j = 0; j < trainRoutes.length; j++) {
-                if (i == j)
-                    continue;
-                Segment[] sharedSegments = getSharedSegmentsForTwoTrains(trainRoutes[i], trainRoutes[j], trains[i], trains[j]);
-                segments.addAll(Arrays.asList(sharedSegments));
-            }
+            routeCells[i] = new int[trainRoutes[i].length];
+            for (int j = 0; j < routeCells[i].length; j++)
+                routeCells[i][j] = cellOf(trainRoutes[i][j]);
+        }
+        RouteIndex index = new RouteIndex(routeCells);
+        Segment[][] trainSegments = IntStream.range(0, trainRoutes.length).parallel()
+                .mapToObj(train -> getSharedSegments(train, trainRoutes[train], routeCells[train], index))
+                .toArray(Segment[][]::new);
+
+        List<Segment> segments = new ArrayList<>();
+        for (Segment[] copies : trainSegments)
+            segments.addAll(Arrays.asList(copies));
+
+        // the copies of a segment are found by its ends, whichever way the trains go:
+        // the smaller cell in the high half and the larger one in the low half
+        long[] ends = new long[segments.size()];
+        for (int i = 0; i < ends.length; i++) {
+            int start = cellOf(segments.get(i).getStart());
+            int end = cellOf(segments.get(i).getEnd());
+            ends[i] = (long) Math.min(start, end) << 32 | Math.max(start, end);
+        }
+        long[] distinctEnds = ends.clone();
+        Arrays.parallelSort(distinctEnds);
+        int distinct = distinct(distinctEnds);
+
+        // every copy takes the lock of the first copy of its segment
+        ReentrantLock[] locks = new ReentrantLock[distinct];
+        for (int i = 0; i < ends.length; i++) {
+            Segment s = segments.get(i);
+            int segment = Arrays.binarySearch(distinctEnds, 0, distinct, ends[i]);
+            if (locks[segment] == null)
+                locks[segment] = s.getLock();
+            s.setLock(locks[segment]);
         }
         return segments.toArray(new Segment[0]);
     }
 
 
     /**
-     * Analyzes the routes of two trains and creates shared segments based on them.
-     * Every train has its own copy of a segment.
+     * Analyzes the route of a train and creates its copies of the segments it shares with other trains.
+     * <p>
+     * A segment is a part of the route whose every crossing is on the route of another train.
+     * A train sharing the same part with many trains has one copy of it.
      *
-     * @param t1Route array of coordinates specifying the route of the first train
-     * @param t2Route array of coordinates specifying the route of the second train
-     * @param t1      enum value used for segment owner identification
-     * @param t2      enum value used for segment owner identification
-     * @return array of shared segments
+     * @param train id of the train
+     * @param route array of coordinates specifying the route of the train
+     * @param cells packed cell indexes of the crossings of the route
+     * @param index crossings of all the routes
+     * @return shared segments of the train, in the order of the other trains and then along the route
      */
-    private Segment[] getSharedSegmentsForTwoTrains(Coordinates[] t1Route, Coordinates[] t2Route, FieldTypes t1, FieldTypes t2) {
-        LinkedList<Segment> segments = new LinkedList<>();
-        Set<Coordinates> otherRoute = new HashSet<>(Arrays.asList(t2Route));
-        Coordinates actStart = t1Route[0];
-        for (int i = 0; i < t1Route.length - 1; i++) {
-            if (otherRoute.contains(t1Route[i]) && !otherRoute.contains(t1Route[i + 1])) {
-                segments.add(new Segment(actStart, t1Route[i], t1));
-                actStart = t1Route[i];
+    private static Segment[] getSharedSegments(int train, Coordinates[] route, int[] cells, RouteIndex index) {
+        // the other train in the high half and the position on the route in the low half
+        long[] meetings = new long[16];
+        int size = 0;
+        for (int i = 0; i < cells.length; i++) {
+            int crossing = index.findCrossing(cells[i]);
+            for (int t = index.getFirstTrain(crossing); t < index.getEndTrain(crossing); t++) {
+                int other = index.getTrain(t);
+                if (other == train)
+                    continue;
+                if (size == meetings.length)
+                    meetings = Arrays.copyOf(meetings, size * 2);
+                meetings[size++] = (long) other << 32 | i;
             }
-            if (!otherRoute.contains(t1Route[i]) && otherRoute.contains(t1Route[i + 1])) {
-                actStart = t1Route[i + 1];
+        }
+        Arrays.sort(meetings, 0, size);
+
+        // the first and the last position of every run on the route, in the high and the low half
+        long[] runs = new long[size];
+        int runCount = 0;
+        int runStart = 0;
+        for (int i = 1; i <= size; i++) {
+            // a run of consecutive crossings shared with the same train ends here
+            if (i < size && meetings[i] == meetings[i - 1] + 1)
+                continue;
+            int first = (int) meetings[runStart];
+            int last = (int) meetings[i - 1];
+            runStart = i;
+            // a run made only of the last crossing doesn't lead anywhere
+            if (first == last && last == route.length - 1)
+                continue;
+            runs[runCount++] = (long) first << 32 | last;
+        }
+
+        // a part of the route shared with many trains gets one copy, in the place of its first run
+        long[] distinctRuns = Arrays.copyOf(runs, runCount);
+        Arrays.sort(distinctRuns);
+        int distinct = distinct(distinctRuns);
+        boolean[] added = new boolean[distinct];
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < runCount; i++) {
+            int run = Arrays.binarySearch(distinctRuns, 0, distinct, runs[i]);
+            if (!added[run]) {
+                added[run] = true;
+                segments.add(new Segment(route[(int) (runs[i] >>> 32)], route[(int) runs[i]], train));
             }
         }
-        if (otherRoute.contains(t1Route[t1Route.length - 2]) && otherRoute.contains(t1Route[t1Route.length - 1]))
-            segments.add(new Segment(actStart, t1Route[t1Route.length - 1], t1));
         return segments.toArray(new Segment[0]);
     }
 
+    /**
+     * Moves the distinct values of a sorted array to its beginning.
+     *
+     * @param sorted values in ascending order
+     * @return number of the distinct values
+     */
+    private static int distinct(long[] sorted) {
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[i] != sorted[count - 1])
+                sorted[count++] = sorted[i];
+        }
+        return count;
+    }
+
 
     /**
      * Procedure moving the train to the given tile (should be the next tile of the train's route)
-     * Works in sync with the paintMap method, so the GUI is updated after every move.
+     * The readers of the map see either the state before or after the move.
+     * Only the tile of the new head and the tile the tail left are changed, nothing is allocated.
+     * In the AdmissionMode.TILES mode the tile the tail left is released, unless the train reserved it ahead.
+     * <p>
+     * Doesn't wait after the move, so it can be used by simulations controlling the time themselves.
      *
-     * @param wagons           array of Coordinates defining the individual wagons of the train.
-     * @param nextHeadPosition coordinates the 0th elem of wagons array will move to
-     * @param trainType        one of the T1, T2, T3 values of enum FieldTypes
+     * @param train        id of the train
+     * @param nextHeadCell packed index of the tile the head of the train will move to
      */
-    private void moveTrain(Coordinates[] wagons, Coordinates nextHeadPosition, FieldTypes trainType) {
-        ioLock.writeLock().lock();
+    public void moveTrain(int train, int nextHeadCell) {
+        TrainPosition position = positions[train];
+        int oldTail = position.getWagon(position.getLength() - 1);
+        int headRow = nextHeadCell / getWidth();
+        int tailRow = oldTail / getWidth();
+
+        boolean tailLeft = false;
 
+        occupants.beginWrite(headRow);
+        occupants.beginWrite(tailRow);
         try {
-            Coordinates nextPosition = nextHeadPosition;
-            Coordinates oldPosition;
-
-            eraseTrain(wagons);
-            // we shift every wagons position by one
-            for (Coordinates wagon : wagons) {
-                oldPosition = new Coordinates(wagon);
-                wagon.moveTo(nextPosition);
-                nextPosition = oldPosition;
+            occupants.set(nextHeadCell, train);
+            position.advance(nextHeadCell);
+            // the tail's tile stays taken if the train turned around and another wagon is still on it
+            if (!position.occupies(oldTail)) {
+                occupants.clear(oldTail, train);
+                changedCells.mark(oldTail);
+                tailLeft = true;
             }
-            markTrain(wagons, trainType);
         } finally {
-            ioLock.writeLock().unlock();
+            occupants.endWrite(headRow);
+            occupants.endWrite(tailRow);
         }
+        changedCells.mark(nextHeadCell);
+        TileReservations reservations = tileReservations;
+        if (tailLeft && reservations != null && !isLookahead(train, oldTail))
+            reservations.release(oldTail, train);
+        EventRecorder recorder = eventRecorder;
+        if (recorder != null)
+            recorder.trainMoved(train, nextHeadCell);
+        for (MapChangeListener listener : changeListeners)
+            listener.mapChanged();
+    }
+
+    /**
+     * Puts the train on the given tiles, wherever it was before.
+     * Used to restore a recorded or saved state of the map, while the train isn't moving.
+     *
+     * @param train  id of the train
+     * @param wagons packed indexes of the tiles of the wagons, starting with the head
+     * @throws IllegalArgumentException if the number of wagons differs from the train's
+     */
+    public void placeTrain(int train, int[] wagons) {
+        TrainPosition old = positions[train];
+        if (wagons.length != old.getLength())
+            throw new IllegalArgumentException("Train " + (train + 1) + " has " + old.getLength() + " wagons, not " + wagons.length);
+        for (int i = 0; i < old.getLength(); i++)
+            setOccupant(old.getWagon(i), train, false);
+        positions[train] = new TrainPosition(wagons);
+        for (int wagon : wagons)
+            setOccupant(wagon, train, true);
+        for (MapChangeListener listener : changeListeners)
+            listener.mapChanged();
+    }
+
+    /**
+     * Marks or clears one wagon of the train on the map.
+     */
+    private void setOccupant(int cell, int train, boolean occupied) {
+        int row = cell / getWidth();
+        occupants.beginWrite(row);
+        try {
+            if (occupied)
+                occupants.set(cell, train);
+            else
+                occupants.clear(cell, train);
+        } finally {
+            occupants.endWrite(row);
+        }
+        changedCells.mark(cell);
+    }
+
+    /**
+     * Sets the recorder receiving every move of the trains and every change of the shared segments' owners.
+     *
+     * @param recorder recorder of the events, or null to stop recording
+     */
+    public void setEventRecorder(EventRecorder recorder) {
+        eventRecorder = recorder;
+        segmentLock.setEventRecorder(recorder);
+    }
+
+    /**
+     * Registers a listener notified after every move of a train.
+     *
+     * @param listener listener to add
+     */
+    public synchronized void addChangeListener(MapChangeListener listener) {
+        MapChangeListener[] listeners = Arrays.copyOf(changeListeners, changeListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        changeListeners = listeners;
     }
 
     /**
-     * Marks the train on the map.
+     * Removes a listener registered by addChangeListener.
      *
-     * @param wagons    array of Coordinates defining the individual wagons of the train.
-     * @param trainType one of the T1, T2, T3 values of enum FieldTypes
+     * @param listener listener to remove
      */
-    private void markTrain(Coordinates[] wagons, FieldTypes trainType) {
-        for (Coordinates actWagon : wagons)
-            tunnelsMap[actWagon.getRow()][actWagon.getCol()] = trainType;
+    public synchronized void removeChangeListener(MapChangeListener listener) {
+        List<MapChangeListener> listeners = new ArrayList<>(Arrays.asList(changeListeners));
+        listeners.remove(listener);
+        changeListeners = listeners.toArray(new MapChangeListener[0]);
     }
 
     /**
-     * Removes the train from the map.
+     * Returns the positions of the train's wagons.
+     * Should be only read by the thread moving the train.
      *
-     * @param wagons array of Coordinates defining the individual wagons of the train.
+     * @param train id of the train
+     * @return positions of the wagons
      */
-    private void eraseTrain(Coordinates[] wagons) {
-        for (Coordinates actWagon : wagons)
-            tunnelsMap[actWagon.getRow()][actWagon.getCol()] = FieldTypes.EMPTY;
+    public TrainPosition getTrainPosition(int train) {
+        return positions[train];
     }
 
     /**
      * Prints the tunnel's map.
      */
     public void printMap() {
-        beginPainting();
-        System.out.println();
-        for (FieldTypes[] row : tunnelsMap) {
-            System.out.println(Arrays.toString(row));
+        try (MapSnapshot snapshot = snapshot()) {
+            System.out.println();
+            for (int i = 0; i < getHeight(); i++) {
+                StringBuilder row = new StringBuilder();
+                for (int j = 0; j < getWidth(); j++) {
+                    int occupant = snapshot.getOccupant(i, j);
+                    if (occupant != NO_TRAIN)
+                        row.append(String.format("T%-3d", occupant + 1));
+                    else
+                        row.append(String.format("%-4s", mapWrapper.getField(i, j).name().charAt(0)));
+                }
+                System.out.println(row);
+            }
+            System.out.println();
         }
-        System.out.println();
-        endPainting();
     }
 
+    /**
+     * Returns a snapshot of the trains' positions, without blocking the trains.
+     * <p>
+     * If no train moved since the latest snapshot, the same snapshot is returned again.
+     * Otherwise a new one is copied to an array of a closed snapshot, so a reader closing its snapshots
+     * doesn't allocate anything. Every stripe of rows of the snapshot is consistent. The whole snapshot is,
+     * unless the trains kept changing the map during several attempts to copy it.
+     *
+     * @return snapshot of the map, has to be closed after reading
+     */
+    public MapSnapshot snapshot() {
+        MapSnapshot latest = latestSnapshot.get();
+        if (latest != null && latest.getVersion() == occupants.getVersion() && latest.retain())
+            return latest;
+
+        int[] buffer = snapshotPool.poll();
+        if (buffer == null)
+            buffer = new int[getWidth() * getHeight()];
+        long version = occupants.copyTo(buffer);
+        MapSnapshot snapshot = new MapSnapshot(getWidth(), getHeight(), version, buffer, snapshotPool);
+
+        // the monitor keeps a reference to the latest snapshot, so it's one more reader
+        snapshot.retain();
+        if (latestSnapshot.compareAndSet(latest, snapshot)) {
+            if (latest != null)
+                latest.close();
+        } else {
+            // another reader published a snapshot meanwhile
+            snapshot.close();
+        }
+        return snapshot;
+    }
 
     /**
-     * Acquires the synchronization tools.
-     * After reading you should invoke endPainting().
+     * Copies the ids of the trains occupying the tiles to the given array, without blocking the trains.
+     * The tile (row, col) is copied to target[row * getWidth() + col].
+     *
+     * @param target array of at least getWidth() * getHeight() elements
+     * @return version of the copied state, as in MapSnapshot.getVersion()
      */
-    public void beginPainting() {
-        ioLock.readLock().lock();
+    public long copyOccupants(int[] target) {
+        return occupants.copyTo(target);
     }
 
+
     /**
-     * Releases the synchronization tools.
-     * Should be invoked after beginPainting(), once the reading is done.
+     * Passes every tile whose occupant changed since the previous call to the consumer.
+     * Used by the renderer to repaint only the changed tiles, so there should be only one caller.
+     *
+     * @param consumer receives the packed indexes of the changed tiles
      */
-    public void endPainting() {
-        ioLock.readLock().unlock();
+    public void drainChangedCells(IntConsumer consumer) {
+        changedCells.drain(consumer);
     }
 
     /**
@@ -280,23 +848,122 @@ public class TunnelsMapMonitor {
      * @return the FieldTypes value of the field
      */
     public FieldTypes getField(Coordinates field) {
-        return tunnelsMap[field.getRow()][field.getCol()];
+        if (occupants.get(cellOf(field)) != NO_TRAIN)
+            return FieldTypes.TRAIN;
+        return mapWrapper.getField(field.getRow(), field.getCol());
+    }
+
+    /**
+     * Function used to get the type of a given field, regardless of the trains on it
+     *
+     * @param field coordinates of a given field
+     * @return EMPTY, WALL or STATION
+     */
+    public FieldTypes getLayoutField(Coordinates field) {
+        return mapWrapper.getField(field.getRow(), field.getCol());
     }
 
-    public static int getWidth() {
-        return TunnelsMap.WIDTH;
+    /**
+     * Function used to get the train occupying a given field
+     *
+     * @param field coordinates of a given field
+     * @return id of the train on the field, or NO_TRAIN
+     */
+    public int getOccupant(Coordinates field) {
+        return occupants.get(cellOf(field));
     }
 
-    public static int getHeight() {
-        return TunnelsMap.HEIGHT;
+    /**
+     * Function used to get the train occupying a given tile
+     *
+     * @param cell packed index of the tile
+     * @return id of the train on the tile, or NO_TRAIN
+     */
+    public int getOccupant(int cell) {
+        return occupants.get(cell);
     }
 
-    public void setSleepTime(int sleepTime, FieldTypes train) {
-        switch (train) {
-            case T1 -> t1SleepTime = sleepTime;
-            case T2 -> t2SleepTime = sleepTime;
-            case T3 -> t3SleepTime = sleepTime;
-        }
+    /**
+     * Returns the shared segments of this map's routes.
+     *
+     * @return object synchronizing the shared segments
+     */
+    public SegmentLock getSegmentLock() {
+        return segmentLock;
+    }
+
+    /**
+     * Returns the metrics of the trains and the shared segments, recorded while the trains move.
+     *
+     * @return metrics of this map's trains
+     */
+    public SimulationMetrics getMetrics() {
+        return segmentLock.getMetrics();
+    }
+
+    /**
+     * Returns the counters of the tiles, updated as the trains enter them.
+     * The tiles whose counters change are also reported by drainChangedCells.
+     *
+     * @return metrics of the map's tiles
+     */
+    public TileMetrics getTileMetrics() {
+        return tileMetrics;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return mapWrapper.getHeight();
+    }
+
+    /**
+     * Returns the layout of the tunnels.
+     *
+     * @return map the trains move on
+     */
+    public TunnelsMap getMap() {
+        return mapWrapper;
+    }
+
+    /**
+     * Returns the gate stopping the trains while the simulation is paused.
+     *
+     * @return pause gate of the simulation
+     */
+    public PauseGate getPauseGate() {
+        return pauseGate;
+    }
+
+    /**
+     * Returns the clock pacing the trains, which also sets the speed of the whole simulation.
+     *
+     * @return clock of the simulation
+     */
+    public SimulationClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Changes the time a train spends sleeping after moving to next tile
+     *
+     * @param sleepTime time in ms
+     * @param train     id of the train
+     */
+    public void setSleepTime(int sleepTime, int train) {
+        sleepTimes[train] = sleepTime;
+    }
+
+    /**
+     * Returns the time a train spends sleeping after moving to next tile
+     *
+     * @param train id of the train
+     * @return time in ms
+     */
+    public int getSleepTime(int train) {
+        return sleepTimes[train];
     }
 
     /**
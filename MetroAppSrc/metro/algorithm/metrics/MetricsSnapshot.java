@@ -0,0 +1,190 @@
+package metro.algorithm.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable copy of the metrics of a simulation, returned by SimulationModel.getMetrics().
+ *
+ * @see SimulationMetrics
+ */
+public final class MetricsSnapshot {
+    private final List<TrainStats> trains;
+    private final List<SegmentStats> segments;
+
+    MetricsSnapshot(TrainMetrics[] trains, SegmentMetrics[] segments) {
+        TrainStats[] trainStats = new TrainStats[trains.length];
+        for (int i = 0; i < trains.length; i++)
+            trainStats[i] = new TrainStats(trains[i]);
+        SegmentStats[] segmentStats = new SegmentStats[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            segmentStats[i] = new SegmentStats(segments[i]);
+        this.trains = Collections.unmodifiableList(Arrays.asList(trainStats));
+        this.segments = Collections.unmodifiableList(Arrays.asList(segmentStats));
+    }
+
+    /**
+     * @return metrics of the trains, indexed by train id
+     */
+    public List<TrainStats> getTrains() {
+        return trains;
+    }
+
+    /**
+     * @return metrics of the shared segments
+     */
+    public List<SegmentStats> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Returns the segment the trains waited for the longest in total, the crossing limiting the simulation.
+     *
+     * @return the bottleneck segment, or null if no train has waited yet
+     */
+    public SegmentStats getBottleneck() {
+        return segments.stream()
+                .filter(s -> s.getContentions() > 0)
+                .max(Comparator.comparingLong(SegmentStats::getTotalWaitMillis))
+                .orElse(null);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (TrainStats t : trains)
+            text.append(t).append(System.lineSeparator());
+        for (SegmentStats s : segments)
+            text.append(s).append(System.lineSeparator());
+        text.append("Bottleneck: ").append(getBottleneck());
+        return text.toString();
+    }
+
+    /**
+     * Metrics of one train
+     */
+    public static final class TrainStats {
+        private final String name;
+        private final long tilesMoved;
+        private final long roundTrips;
+        private final double tilesPerSecond;
+        private final long waitCount;
+        private final long totalWaitMillis;
+        private final double waitP99Millis;
+        private final double maxWaitMillis;
+
+        private TrainStats(TrainMetrics train) {
+            name = train.getName();
+            tilesMoved = train.getTilesMoved();
+            roundTrips = train.getRoundTrips();
+            tilesPerSecond = train.getTilesPerSecond();
+            waitCount = train.getWaitCount();
+            totalWaitMillis = train.getTotalWaitMillis();
+            waitP99Millis = train.getWaitP99Millis();
+            maxWaitMillis = train.getMaxWaitMillis();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTilesMoved() {
+            return tilesMoved;
+        }
+
+        public long getRoundTrips() {
+            return roundTrips;
+        }
+
+        public double getTilesPerSecond() {
+            return tilesPerSecond;
+        }
+
+        public long getWaitCount() {
+            return waitCount;
+        }
+
+        public long getTotalWaitMillis() {
+            return totalWaitMillis;
+        }
+
+        public double getWaitP99Millis() {
+            return waitP99Millis;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: tiles=%d, round trips=%d, tiles/s=%.2f, waits=%d, wait total=%dms, p99=%.1fms, max=%.1fms",
+                    name, tilesMoved, roundTrips, tilesPerSecond, waitCount, totalWaitMillis, waitP99Millis, maxWaitMillis);
+        }
+    }
+
+    /**
+     * Metrics of one shared segment
+     */
+    public static final class SegmentStats {
+        private final String name;
+        private final long acquisitions;
+        private final long contentions;
+        private final long totalWaitMillis;
+        private final double waitP99Millis;
+        private final double maxWaitMillis;
+        private final double meanHoldMillis;
+        private final double holdP99Millis;
+
+        private SegmentStats(SegmentMetrics segment) {
+            name = segment.getName();
+            acquisitions = segment.getAcquisitions();
+            contentions = segment.getContentions();
+            totalWaitMillis = segment.getTotalWaitMillis();
+            waitP99Millis = segment.getWaitP99Millis();
+            maxWaitMillis = segment.getMaxWaitMillis();
+            meanHoldMillis = segment.getMeanHoldMillis();
+            holdP99Millis = segment.getHoldP99Millis();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        public long getContentions() {
+            return contentions;
+        }
+
+        public long getTotalWaitMillis() {
+            return totalWaitMillis;
+        }
+
+        public double getWaitP99Millis() {
+            return waitP99Millis;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+
+        public double getMeanHoldMillis() {
+            return meanHoldMillis;
+        }
+
+        public double getHoldP99Millis() {
+            return holdP99Millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: taken=%d, contended=%d, wait total=%dms, p99=%.1fms, max=%.1fms, hold mean=%.1fms, p99=%.1fms",
+                    name, acquisitions, contentions, totalWaitMillis, waitP99Millis, maxWaitMillis, meanHoldMillis, holdP99Millis);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package metro.algorithm.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one shared segment: how often it's taken, how long the trains wait for it and how long they hold it.
+ * Copies of the same segment belonging to different trains share one instance.
+ */
+public class SegmentMetrics implements SegmentMetricsMXBean {
+    private final String name;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contentions = new LongAdder();
+
+    /**
+     * Times the trains waited for the segment, in ns
+     */
+    private final LatencyHistogram waits = new LatencyHistogram();
+    /**
+     * Times the trains held the segment, in ns
+     */
+    private final LatencyHistogram holds = new LatencyHistogram();
+
+    /**
+     * Time the segment was taken by its current holder, in ns.
+     * Written and read only by the train holding the segment's lock, which orders the accesses.
+     */
+    private long acquiredNanos;
+
+    /**
+     * @param name name of the segment, e.g. (1,2)-(1,8)
+     */
+    public SegmentMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records that a train took the segment. Has to be called while holding the segment's lock.
+     *
+     * @param now current System.nanoTime()
+     */
+    public void acquired(long now) {
+        acquisitions.increment();
+        acquiredNanos = now;
+    }
+
+    /**
+     * Records that the holder of the segment released it. Has to be called while still holding the segment's lock.
+     *
+     * @param now current System.nanoTime()
+     */
+    public void released(long now) {
+        holds.record(now - acquiredNanos);
+    }
+
+    /**
+     * Records that a train found the segment taken and waited for it.
+     *
+     * @param nanos waiting time in ns
+     */
+    public void contended(long nanos) {
+        contentions.increment();
+        waits.record(nanos);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @Override
+    public long getContentions() {
+        return contentions.sum();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waits.getTotal());
+    }
+
+    @Override
+    public double getWaitP99Millis() {
+        return SimulationMetrics.toMillis(waits.getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getMaxWaitMillis() {
+        return SimulationMetrics.toMillis(waits.getMax());
+    }
+
+    @Override
+    public double getMeanHoldMillis() {
+        return SimulationMetrics.toMillis(holds.getMean());
+    }
+
+    @Override
+    public double getHoldP99Millis() {
+        return SimulationMetrics.toMillis(holds.getValueAtPercentile(99));
+    }
+}
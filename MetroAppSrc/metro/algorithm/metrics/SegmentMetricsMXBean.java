@@ -0,0 +1,29 @@
+package metro.algorithm.metrics;
+
+/**
+ * Management interface of the metrics of one shared segment, registered in the platform MBean server
+ * as metro:type=Segment,simulation=N,name="(row,col)-(row,col)".
+ */
+public interface SegmentMetricsMXBean {
+    String getName();
+
+    /**
+     * @return number of times a train took the segment
+     */
+    long getAcquisitions();
+
+    /**
+     * @return number of times a train found the segment taken and had to wait for it
+     */
+    long getContentions();
+
+    long getTotalWaitMillis();
+
+    double getWaitP99Millis();
+
+    double getMaxWaitMillis();
+
+    double getMeanHoldMillis();
+
+    double getHoldP99Millis();
+}
@@ -0,0 +1,120 @@
+package metro.algorithm.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Metrics of one simulation: a TrainMetrics per train and a SegmentMetrics per shared segment.
+ * <p>
+ * The trains only add to LongAdders and lock-free histograms, so the counters cost them a few nanoseconds
+ * and never make them wait for each other or for the readers.
+ * The metrics can be read with snapshot() or over JMX, after calling registerMBeans().
+ */
+public class SimulationMetrics {
+    /**
+     * Numbers the simulations in the names of their MBeans
+     */
+    private static final AtomicInteger simulations = new AtomicInteger();
+
+    /**
+     * Metrics of the trains, indexed by train id
+     */
+    private final TrainMetrics[] trains;
+    /**
+     * Metrics of the shared segments, indexed by the global order of the segments' locks
+     */
+    private final SegmentMetrics[] segments;
+
+    /**
+     * Names of the MBeans registered by registerMBeans()
+     */
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+
+    /**
+     * @param trains       number of trains
+     * @param segmentNames names of the shared segments, indexed by the global order of the segments' locks
+     */
+    public SimulationMetrics(int trains, String[] segmentNames) {
+        this.trains = new TrainMetrics[trains];
+        for (int i = 0; i < trains; i++)
+            this.trains[i] = new TrainMetrics("T" + (i + 1));
+        segments = new SegmentMetrics[segmentNames.length];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new SegmentMetrics(segmentNames[i]);
+    }
+
+    /**
+     * @param train id of the train
+     * @return metrics of the train
+     */
+    public TrainMetrics getTrain(int train) {
+        return trains[train];
+    }
+
+    /**
+     * @param lockOrder position of the segment's lock in the global order
+     * @return metrics of the segment
+     */
+    public SegmentMetrics getSegment(int lockOrder) {
+        return segments[lockOrder];
+    }
+
+    /**
+     * Copies the current values of the metrics.
+     *
+     * @return immutable copy of the metrics
+     */
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(trains, segments);
+    }
+
+    /**
+     * Registers the metrics of the trains and segments in the platform MBean server, as
+     * metro:type=Train,simulation=N,name=T1 and metro:type=Segment,simulation=N,name="(row,col)-(row,col)".
+     * Does nothing if they are already registered.
+     */
+    public synchronized void registerMBeans() {
+        if (!registeredNames.isEmpty())
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = "metro:simulation=" + simulations.incrementAndGet();
+        try {
+            for (TrainMetrics train : trains)
+                register(server, new ObjectName(prefix + ",type=Train,name=" + train.getName()), train);
+            for (SegmentMetrics segment : segments)
+                register(server, new ObjectName(prefix + ",type=Segment,name=" + ObjectName.quote(segment.getName())), segment);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        server.registerMBean(mbean, name);
+        registeredNames.add(name);
+    }
+
+    /**
+     * Removes the MBeans registered by registerMBeans().
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registeredNames.clear();
+    }
+
+    static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,93 @@
+package metro.algorithm.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Counters of every tile of the map: how many times a train entered it and how long the trains waited to enter it.
+ * <p>
+ * The counters only grow until they're cleared, and the highest values are kept up to date as they do,
+ * so a reader like the heatmap of the map can scale the values without scanning all the tiles.
+ */
+public class TileMetrics {
+    /**
+     * Number of times a train's head entered the tile, indexed by the packed cell index
+     */
+    private final AtomicLongArray entries;
+    /**
+     * Time in ns the trains waited for the segments before entering the tile, indexed by the packed cell index
+     */
+    private final AtomicLongArray waitNanos;
+
+    private final LongAccumulator maxEntries = new LongAccumulator(Long::max, 0);
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * @param tiles number of tiles of the map
+     */
+    public TileMetrics(int tiles) {
+        entries = new AtomicLongArray(tiles);
+        waitNanos = new AtomicLongArray(tiles);
+    }
+
+    /**
+     * Counts a train entering the tile.
+     *
+     * @param cell packed index of the tile
+     */
+    public void entered(int cell) {
+        maxEntries.accumulate(entries.incrementAndGet(cell));
+    }
+
+    /**
+     * Adds the time a train waited before entering the tile.
+     *
+     * @param cell  packed index of the tile
+     * @param nanos waiting time in ns
+     */
+    public void waited(int cell, long nanos) {
+        maxWaitNanos.accumulate(waitNanos.addAndGet(cell, nanos));
+    }
+
+    /**
+     * Sets every counter to 0. Should be called only when no train moves.
+     */
+    public void clear() {
+        for (int cell = 0; cell < entries.length(); cell++) {
+            entries.set(cell, 0);
+            waitNanos.set(cell, 0);
+        }
+        maxEntries.reset();
+        maxWaitNanos.reset();
+    }
+
+    /**
+     * @param cell packed index of the tile
+     * @return number of times a train entered the tile
+     */
+    public long getEntries(int cell) {
+        return entries.get(cell);
+    }
+
+    /**
+     * @param cell packed index of the tile
+     * @return total time in ns the trains waited before entering the tile
+     */
+    public long getWaitNanos(int cell) {
+        return waitNanos.get(cell);
+    }
+
+    /**
+     * @return the highest number of entries of a tile
+     */
+    public long getMaxEntries() {
+        return maxEntries.get();
+    }
+
+    /**
+     * @return the longest total waiting time of a tile, in ns
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+}
@@ -0,0 +1,102 @@
+package metro.algorithm.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one train: the tiles it moved, the round trips it completed and the time it waited for the segments.
+ * Updated by the train's own thread, read by any thread.
+ */
+public class TrainMetrics implements TrainMetricsMXBean {
+    private final String name;
+
+    private final LongAdder tilesMoved = new LongAdder();
+    private final LongAdder roundTrips = new LongAdder();
+
+    /**
+     * Times the train waited for the shared segments, in ns
+     */
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    /**
+     * Time of the train's first move in ns, 0 until it moves.
+     * The throughput is counted from there, so the time the simulation spent paused before the start doesn't count.
+     */
+    private volatile long firstMoveNanos;
+
+    /**
+     * @param name name of the train, e.g. T1
+     */
+    public TrainMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Counts a tile moved by the train.
+     */
+    public void tileMoved() {
+        if (firstMoveNanos == 0)
+            firstMoveNanos = System.nanoTime();
+        tilesMoved.increment();
+    }
+
+    /**
+     * Counts a round trip, after the train returns to the start of its route.
+     */
+    public void roundTripCompleted() {
+        roundTrips.increment();
+    }
+
+    /**
+     * Records the time the train waited before it could enter the shared segments.
+     *
+     * @param nanos waiting time in ns
+     */
+    public void waited(long nanos) {
+        waits.record(nanos);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getTilesMoved() {
+        return tilesMoved.sum();
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    @Override
+    public double getTilesPerSecond() {
+        long start = firstMoveNanos;
+        long elapsed = System.nanoTime() - start;
+        if (start == 0 || elapsed <= 0)
+            return 0;
+        return getTilesMoved() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    @Override
+    public long getWaitCount() {
+        return waits.getCount();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waits.getTotal());
+    }
+
+    @Override
+    public double getWaitP99Millis() {
+        return SimulationMetrics.toMillis(waits.getValueAtPercentile(99));
+    }
+
+    @Override
+    public double getMaxWaitMillis() {
+        return SimulationMetrics.toMillis(waits.getMax());
+    }
+}
@@ -0,0 +1,29 @@
+package metro.algorithm.metrics;
+
+/**
+ * Management interface of the metrics of one train, registered in the platform MBean server
+ * as metro:type=Train,simulation=N,name=T1.
+ */
+public interface TrainMetricsMXBean {
+    String getName();
+
+    long getTilesMoved();
+
+    long getRoundTrips();
+
+    /**
+     * @return tiles moved per second since the train's first move
+     */
+    double getTilesPerSecond();
+
+    /**
+     * @return number of times the train waited for a shared segment
+     */
+    long getWaitCount();
+
+    long getTotalWaitMillis();
+
+    double getWaitP99Millis();
+
+    double getMaxWaitMillis();
+}
@@ -0,0 +1,74 @@
+package metro.algorithm.replay;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Format of the event logs written by EventLogWriter and read by SimulationReplay.
+ * <p>
+ * The header holds the size of the map and the initial wagons and the route of every train:
+ * <pre>
+ * "METROLOG" version:int width:int height:int trains:int
+ * for every train: wagons:int cells:int[wagons] crossings:int cells:int[crossings]
+ * </pre>
+ * It's followed by the events. Every event starts with a varint of (train &lt;&lt; 2 | kind) and a zigzag varint
+ * of the time in microseconds since the previous event, so a typical event takes 3 - 5 bytes:
+ * <ul>
+ * <li>MOVE: zigzag varint of the difference between the new head's cell and the train's previous head</li>
+ * <li>ACQUIRE, RELEASE: varint of the segment's position in the global order of the segments</li>
+ * <li>KEYFRAME: instead of the time difference, a varint of the time since the start, not lower than the time
+ * of any previous event. Then a varint of the cells of every wagon of every train, varint of the number of segments
+ * and a varint of the owner + 1 of each. The decoding of the next events starts from the keyframe,
+ * so the replay can seek to it.</li>
+ * </ul>
+ */
+final class EventLog {
+    static final byte[] MAGIC = {'M', 'E', 'T', 'R', 'O', 'L', 'O', 'G'};
+    static final int VERSION = 1;
+
+    static final int MOVE = 0;
+    static final int ACQUIRE = 1;
+    static final int RELEASE = 2;
+    static final int KEYFRAME = 3;
+
+    /**
+     * Owner of a free segment
+     */
+    static final int NO_OWNER = -1;
+
+    /**
+     * Upper bound of the size of an event other than a keyframe, in bytes
+     */
+    static final int MAX_EVENT_BYTES = 3 * 10;
+
+    private EventLog() {
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * Maps the signed values to unsigned ones, so the small negative differences get short varints too.
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
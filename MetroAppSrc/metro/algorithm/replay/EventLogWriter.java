@@ -0,0 +1,381 @@
+package metro.algorithm.replay;
+
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.EventRecorder;
+import metro.algorithm.map.TrainPosition;
+import metro.algorithm.map.TunnelsMapMonitor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the moves of the trains and the owners of the shared segments to an event log, which can be replayed
+ * by SimulationReplay.
+ * <p>
+ * The trains only append their events to their own thread's ring buffer, without locking or allocating.
+ * A background thread drains the buffers every few milliseconds, encodes the events (see EventLog)
+ * and writes them to the file, or sooner when a buffer gets half full.
+ * The trains wait only if the writer falls a whole buffer behind them. If the writer fails, the recording stops,
+ * the trains drop their events and close() throws the error.
+ * <p>
+ * The events of one train are always written in their order. The events of different trains drained
+ * at the same time are merged by their time.
+ *
+ * @see SimulationReplay
+ */
+public class EventLogWriter implements EventRecorder, AutoCloseable {
+    /**
+     * Number of events each thread can record before the writer drains them
+     */
+    private static final int BUFFER_EVENTS = 1024;
+
+    /**
+     * Time between two drains of the buffers
+     */
+    private static final long DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Time a thread waits before checking again if the writer has drained its full buffer
+     */
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Number of events between two keyframes
+     */
+    private static final int KEYFRAME_INTERVAL = 4096;
+
+    private final TunnelsMapMonitor monitor;
+    private final FileChannel channel;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Buffers of every thread that recorded an event
+     */
+    private final List<EventBuffer> buffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<EventBuffer> threadBuffer = ThreadLocal.withInitial(this::createBuffer);
+
+    private final Thread writerThread;
+    private volatile boolean closed = false;
+    /**
+     * Set when the writer thread fails to write the events, the recording has stopped then
+     */
+    private volatile boolean failed = false;
+    /**
+     * Error of the writer thread, thrown by close(). Published by failed.
+     */
+    private IOException failure;
+
+    /*
+     * The state below is used only by the writer thread
+     */
+
+    /**
+     * Encoded events waiting to be written to the file
+     */
+    private final ByteBuffer output = ByteBuffer.allocateDirect(1 << 16);
+
+    /**
+     * Positions of the trains after the events written so far, copied to the keyframes
+     */
+    private final TrainPosition[] positions;
+    private int[] segmentOwners = new int[0];
+    /**
+     * Cells of the trains' heads and the time of the last event, the next events are encoded relative to them
+     */
+    private final int[] lastHeads;
+    private long lastTime = 0;
+    /**
+     * Time of the latest event written, the events drained late may have earlier times
+     */
+    private long maxTime = 0;
+    private int eventsSinceKeyframe = 0;
+
+    /**
+     * Starts recording the events of the monitor's trains. The trains shouldn't move until the recording starts.
+     *
+     * @param file    file the events are written to, replaced if it exists
+     * @param monitor monitor of the trains
+     * @param routes  crossings of the trains' routes, indexed by train id
+     * @throws IOException if the file can't be written
+     */
+    public EventLogWriter(Path file, TunnelsMapMonitor monitor, Coordinates[][] routes) throws IOException {
+        this.monitor = monitor;
+        int trains = routes.length;
+        positions = new TrainPosition[trains];
+        lastHeads = new int[trains];
+        for (int i = 0; i < trains; i++) {
+            TrainPosition position = monitor.getTrainPosition(i);
+            int[] wagons = new int[position.getLength()];
+            for (int j = 0; j < wagons.length; j++)
+                wagons[j] = position.getWagon(j);
+            positions[i] = new TrainPosition(wagons);
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeHeader(routes);
+            writeKeyframe();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        writerThread = new Thread(this::runWriter, "Event log writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        monitor.setEventRecorder(this);
+    }
+
+    @Override
+    public void trainMoved(int train, int cell) {
+        record(train, EventLog.MOVE, cell);
+    }
+
+    @Override
+    public void segmentAcquired(int train, int segment) {
+        record(train, EventLog.ACQUIRE, segment);
+    }
+
+    @Override
+    public void segmentReleased(int train, int segment) {
+        record(train, EventLog.RELEASE, segment);
+    }
+
+    private void record(int train, int kind, int value) {
+        long time = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        threadBuffer.get().add(time, train << 2 | kind, value);
+    }
+
+    private EventBuffer createBuffer() {
+        EventBuffer buffer = new EventBuffer();
+        buffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Stops the recording, writes the remaining events and closes the file.
+     *
+     * @throws IOException if the events can't be written, also if the writer thread failed to write them earlier
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        monitor.setEventRecorder(null);
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (failed)
+                throw failure;
+            // the events recorded by the trains which didn't notice the recording stopped
+            drain();
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void runWriter() {
+        try {
+            while (!closed) {
+                LockSupport.parkNanos(DRAIN_NANOS);
+                drain();
+                flush();
+            }
+        } catch (IOException e) {
+            failure = e;
+            failed = true;
+            // the trains stop recording, the events already recorded are dropped
+            if (!closed)
+                monitor.setEventRecorder(null);
+        }
+    }
+
+    private void writeHeader(Coordinates[][] routes) throws IOException {
+        int size = EventLog.MAGIC.length + 4 * Integer.BYTES;
+        for (int i = 0; i < routes.length; i++)
+            size += (2 + positions[i].getLength() + routes[i].length) * Integer.BYTES;
+        ByteBuffer header = ByteBuffer.allocate(size);
+        header.put(EventLog.MAGIC).putInt(EventLog.VERSION)
+                .putInt(monitor.getWidth()).putInt(monitor.getHeight()).putInt(routes.length);
+        for (int i = 0; i < routes.length; i++) {
+            header.putInt(positions[i].getLength());
+            for (int j = 0; j < positions[i].getLength(); j++)
+                header.putInt(positions[i].getWagon(j));
+            header.putInt(routes[i].length);
+            for (Coordinates crossing : routes[i])
+                header.putInt(monitor.cellOf(crossing));
+        }
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    /**
+     * Moves the events of every buffer to the file, merged by their time.
+     */
+    private void drain() throws IOException {
+        PriorityQueue<EventBuffer> pending = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.peekTime(), b.peekTime()));
+        for (EventBuffer buffer : buffers) {
+            if (buffer.startDrain())
+                pending.add(buffer);
+        }
+        while (!pending.isEmpty()) {
+            EventBuffer buffer = pending.poll();
+            write(buffer.peekTime(), buffer.peekCode(), buffer.peekValue());
+            if (buffer.next())
+                pending.add(buffer);
+        }
+    }
+
+    private void write(long time, int code, int value) throws IOException {
+        int train = code >>> 2;
+        int kind = code & 3;
+        ensureCapacity(EventLog.MAX_EVENT_BYTES);
+        EventLog.putVarint(output, code);
+        EventLog.putVarint(output, EventLog.zigzag(time - lastTime));
+        lastTime = time;
+        maxTime = Math.max(maxTime, time);
+        if (kind == EventLog.MOVE) {
+            EventLog.putVarint(output, EventLog.zigzag(value - lastHeads[train]));
+            lastHeads[train] = value;
+            positions[train].advance(value);
+        } else {
+            EventLog.putVarint(output, value);
+            if (value >= segmentOwners.length) {
+                int oldLength = segmentOwners.length;
+                segmentOwners = Arrays.copyOf(segmentOwners, Math.max(value + 1, oldLength * 2));
+                Arrays.fill(segmentOwners, oldLength, segmentOwners.length, EventLog.NO_OWNER);
+            }
+            if (kind == EventLog.ACQUIRE)
+                segmentOwners[value] = train;
+            else if (segmentOwners[value] == train)
+                segmentOwners[value] = EventLog.NO_OWNER;
+        }
+        if (++eventsSinceKeyframe >= KEYFRAME_INTERVAL)
+            writeKeyframe();
+    }
+
+    private void writeKeyframe() throws IOException {
+        ensureCapacity(EventLog.MAX_EVENT_BYTES);
+        EventLog.putVarint(output, EventLog.KEYFRAME);
+        // the keyframes' times never decrease, so the replay can search them
+        EventLog.putVarint(output, maxTime);
+        lastTime = maxTime;
+        for (int train = 0; train < positions.length; train++) {
+            lastHeads[train] = positions[train].getWagon(0);
+            for (int i = 0; i < positions[train].getLength(); i++) {
+                ensureCapacity(EventLog.MAX_EVENT_BYTES);
+                EventLog.putVarint(output, positions[train].getWagon(i));
+            }
+        }
+        EventLog.putVarint(output, segmentOwners.length);
+        for (int owner : segmentOwners) {
+            ensureCapacity(EventLog.MAX_EVENT_BYTES);
+            EventLog.putVarint(output, owner + 1);
+        }
+        eventsSinceKeyframe = 0;
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (output.remaining() < bytes)
+            flush();
+    }
+
+    private void flush() throws IOException {
+        output.flip();
+        while (output.hasRemaining())
+            channel.write(output);
+        output.clear();
+    }
+
+    /**
+     * Events recorded by one thread, written by the thread and read by the writer.
+     * <p>
+     * The thread publishes its events by advancing the written counter, the writer frees their slots by advancing
+     * the drained counter, so neither of them waits for the other unless the buffer is full.
+     */
+    private final class EventBuffer {
+        private final long[] times = new long[BUFFER_EVENTS];
+        private final int[] codes = new int[BUFFER_EVENTS];
+        private final int[] values = new int[BUFFER_EVENTS];
+
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong drained = new AtomicLong();
+
+        /**
+         * Range of the events read by the current drain, used only by the writer thread
+         */
+        private long drainPosition;
+        private long drainEnd;
+
+        void add(long time, int code, int value) {
+            long index = written.get();
+            while (index - drained.get() >= BUFFER_EVENTS) {
+                // the writer is a whole buffer behind, the event is dropped only if it has stopped
+                // or the train is being stopped, which keeps the interrupt
+                if (closed || failed || Thread.currentThread().isInterrupted())
+                    return;
+                LockSupport.unpark(writerThread);
+                LockSupport.parkNanos(BACKOFF_NANOS);
+            }
+            int slot = (int) (index % BUFFER_EVENTS);
+            times[slot] = time;
+            codes[slot] = code;
+            values[slot] = value;
+            written.lazySet(index + 1);
+            // a busy thread wakes the writer up when its buffer is half full, instead of waiting for the next drain
+            if ((index + 1) % (BUFFER_EVENTS / 2) == 0 && index + 1 - drained.get() >= BUFFER_EVENTS / 2)
+                LockSupport.unpark(writerThread);
+        }
+
+        /**
+         * @return true if there are events to drain
+         */
+        boolean startDrain() {
+            drainPosition = drained.get();
+            drainEnd = written.get();
+            return drainPosition < drainEnd;
+        }
+
+        long peekTime() {
+            return times[(int) (drainPosition % BUFFER_EVENTS)];
+        }
+
+        int peekCode() {
+            return codes[(int) (drainPosition % BUFFER_EVENTS)];
+        }
+
+        int peekValue() {
+            return values[(int) (drainPosition % BUFFER_EVENTS)];
+        }
+
+        /**
+         * Frees the slot of the current event.
+         *
+         * @return true if there are more events to drain
+         */
+        boolean next() {
+            drainPosition++;
+            drained.lazySet(drainPosition);
+            return drainPosition < drainEnd;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package metro.algorithm.replay;
+
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.TunnelsMap;
+import metro.algorithm.map.TunnelsMapMonitor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays an event log recorded by EventLogWriter on a TunnelsMapMonitor, so it can be shown by a MapPanel
+ * like a running simulation.
+ * <p>
+ * The log is memory-mapped and indexed by its keyframes when opened. The replay can be advanced manually,
+ * played at any speed or moved to any time, which starts from the last keyframe before that time,
+ * so seeking doesn't depend on the length of the log.
+ *
+ * @see EventLogWriter
+ */
+public class SimulationReplay {
+    /**
+     * Time between two steps of the playback
+     */
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final TunnelsMapMonitor monitor;
+    private final ByteBuffer log;
+    private final int trains;
+    private final int[] wagonCounts;
+
+    /**
+     * Times in microseconds and positions of the keyframes in the log, in the order of the log
+     */
+    private long[] keyframeTimes = new long[16];
+    private int[] keyframePositions = new int[16];
+    private int keyframes = 0;
+
+    /**
+     * Time of the latest event in microseconds
+     */
+    private long endTime = 0;
+
+    /*
+     * State of the decoding, the next events are encoded relative to it
+     */
+    private final int[] lastHeads;
+    private long lastTime = 0;
+    private int[] segmentOwners = new int[0];
+
+    /**
+     * Time the replay has reached, in microseconds
+     */
+    private long currentTime = 0;
+
+    /**
+     * Thread playing the replay, null if it's not played
+     */
+    private volatile Thread player;
+    private final Object playerLock = new Object();
+
+    /**
+     * Opens the log and puts the trains on their positions at the beginning of the recording.
+     *
+     * @param map  layout of the tunnels the log was recorded on
+     * @param file event log written by EventLogWriter
+     * @throws IOException if the file can't be read or isn't an event log of the map
+     */
+    public SimulationReplay(TunnelsMap map, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be replayed");
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Coordinates[][] wagons;
+        Coordinates[][] routes;
+        try {
+            byte[] magic = new byte[EventLog.MAGIC.length];
+            log.get(magic);
+            if (!Arrays.equals(magic, EventLog.MAGIC))
+                throw new IOException(file + " is not an event log");
+            int version = log.getInt();
+            if (version != EventLog.VERSION)
+                throw new IOException("Unsupported event log version " + version);
+            int width = log.getInt();
+            int height = log.getInt();
+            if (width != map.getWidth() || height != map.getHeight())
+                throw new IOException("The log was recorded on a " + width + "x" + height + " map, not "
+                        + map.getWidth() + "x" + map.getHeight());
+            trains = log.getInt();
+            if (trains < 0 || trains > log.remaining() / (2 * Integer.BYTES))
+                throw new IOException("Invalid number of trains " + trains);
+            wagonCounts = new int[trains];
+            wagons = new Coordinates[trains][];
+            routes = new Coordinates[trains][];
+            for (int i = 0; i < trains; i++) {
+                wagons[i] = readCells(width, height);
+                wagonCounts[i] = wagons[i].length;
+                routes[i] = readCells(width, height);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " has an incomplete header", e);
+        }
+
+        monitor = new TunnelsMapMonitor(map, wagons, routes);
+        lastHeads = new int[trains];
+        indexKeyframes();
+    }
+
+    private Coordinates[] readCells(int width, int height) throws IOException {
+        int count = log.getInt();
+        if (count < 0 || count > log.remaining() / Integer.BYTES)
+            throw new IOException("Invalid number of tiles " + count);
+        Coordinates[] cells = new Coordinates[count];
+        for (int i = 0; i < count; i++) {
+            int cell = log.getInt();
+            if (cell < 0 || cell >= width * height)
+                throw new IOException("Tile " + cell + " is outside the map");
+            cells[i] = new Coordinates(cell / width, cell % width);
+        }
+        return cells;
+    }
+
+    /**
+     * Reads the whole log once, to find its keyframes and its end.
+     * An event cut off by the end of the file, e.g. after a crash of the recording simulation, is ignored.
+     */
+    private void indexKeyframes() {
+        int eventsStart = log.position();
+        int end = eventsStart;
+        try {
+            while (log.hasRemaining()) {
+                int position = log.position();
+                if (readEvent(Long.MAX_VALUE, false) == EventLog.KEYFRAME) {
+                    if (keyframes == keyframeTimes.length) {
+                        keyframeTimes = Arrays.copyOf(keyframeTimes, keyframes * 2);
+                        keyframePositions = Arrays.copyOf(keyframePositions, keyframes * 2);
+                    }
+                    keyframeTimes[keyframes] = lastTime;
+                    keyframePositions[keyframes] = position;
+                    keyframes++;
+                }
+                endTime = Math.max(endTime, lastTime);
+                end = log.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // the last event is incomplete
+        }
+        log.limit(end);
+        log.position(eventsStart);
+        lastTime = 0;
+        Arrays.fill(segmentOwners, EventLog.NO_OWNER);
+    }
+
+    /**
+     * Decodes the next event and applies it to the monitor, unless it happened after the given time.
+     *
+     * @param maxTime time in microseconds, the events after it are left in the log
+     * @param apply   false to only decode the event
+     * @return kind of the decoded event, or -1 if the event happened after maxTime
+     */
+    private int readEvent(long maxTime, boolean apply) {
+        int position = log.position();
+        int code = (int) EventLog.getVarint(log);
+        int train = code >>> 2;
+        int kind = code & 3;
+        long time = kind == EventLog.KEYFRAME
+                ? EventLog.getVarint(log)
+                : lastTime + EventLog.unzigzag(EventLog.getVarint(log));
+        if (time > maxTime) {
+            log.position(position);
+            return -1;
+        }
+        lastTime = time;
+
+        switch (kind) {
+            case EventLog.MOVE -> {
+                int cell = lastHeads[train] + (int) EventLog.unzigzag(EventLog.getVarint(log));
+                lastHeads[train] = cell;
+                if (apply)
+                    monitor.moveTrain(train, cell);
+            }
+            case EventLog.ACQUIRE -> setSegmentOwner((int) EventLog.getVarint(log), train);
+            case EventLog.RELEASE -> {
+                int segment = (int) EventLog.getVarint(log);
+                if (getSegmentOwner(segment) == train)
+                    setSegmentOwner(segment, EventLog.NO_OWNER);
+            }
+            default -> readKeyframe(apply);
+        }
+        return kind;
+    }
+
+    /**
+     * Reads the positions of the trains and the owners of the segments of a keyframe.
+     *
+     * @param placeTrains true to put the trains on the positions of the keyframe
+     */
+    private void readKeyframe(boolean placeTrains) {
+        for (int train = 0; train < trains; train++) {
+            int[] wagons = new int[wagonCounts[train]];
+            for (int i = 0; i < wagons.length; i++)
+                wagons[i] = (int) EventLog.getVarint(log);
+            if (wagons.length > 0)
+                lastHeads[train] = wagons[0];
+            if (placeTrains)
+                monitor.placeTrain(train, wagons);
+        }
+        int segments = (int) EventLog.getVarint(log);
+        for (int segment = 0; segment < segments; segment++)
+            setSegmentOwner(segment, (int) EventLog.getVarint(log) - 1);
+    }
+
+    private void setSegmentOwner(int segment, int train) {
+        if (segment >= segmentOwners.length) {
+            int oldLength = segmentOwners.length;
+            segmentOwners = Arrays.copyOf(segmentOwners, Math.max(segment + 1, oldLength * 2));
+            Arrays.fill(segmentOwners, oldLength, segmentOwners.length, EventLog.NO_OWNER);
+        }
+        segmentOwners[segment] = train;
+    }
+
+    /**
+     * Applies the events up to the given time. Moving back in time seeks to the last keyframe before it.
+     *
+     * @param time time since the start of the recording, in ms
+     */
+    public synchronized void advanceTo(long time) {
+        long micros = TimeUnit.MILLISECONDS.toMicros(time);
+        if (micros < currentTime) {
+            seek(time);
+            return;
+        }
+        applyEvents(micros);
+    }
+
+    /**
+     * Moves the replay to the given time, forward or back. Starts from the last keyframe before the time,
+     * so only the events after it are applied.
+     *
+     * @param time time since the start of the recording, in ms
+     */
+    public synchronized void seek(long time) {
+        long micros = TimeUnit.MILLISECONDS.toMicros(time);
+        int keyframe = Arrays.binarySearch(keyframeTimes, 0, keyframes, micros);
+        if (keyframe < 0)
+            keyframe = -keyframe - 2;
+        else
+            // several keyframes can have the same time, the last one has the most events applied
+            while (keyframe + 1 < keyframes && keyframeTimes[keyframe + 1] == micros)
+                keyframe++;
+        log.position(keyframePositions[Math.max(0, keyframe)]);
+        Arrays.fill(segmentOwners, EventLog.NO_OWNER);
+        readEvent(Long.MAX_VALUE, true);
+        applyEvents(micros);
+    }
+
+    /**
+     * Applies the events from the current position of the log up to the given time.
+     *
+     * @param micros time in microseconds
+     */
+    private void applyEvents(long micros) {
+        boolean applied = true;
+        while (applied && log.hasRemaining())
+            applied = readEvent(micros, true) >= 0;
+        currentTime = micros;
+    }
+
+    /**
+     * Plays the replay from the current time in a background thread, until its end or until stop() is called.
+     *
+     * @param speed speed of the playback, e.g. 1 for the recorded speed or 10 for ten times faster
+     * @throws IllegalArgumentException if the speed isn't positive
+     */
+    public void play(double speed) {
+        if (!(speed > 0))
+            throw new IllegalArgumentException("The speed has to be positive, not " + speed);
+        synchronized (playerLock) {
+            stop();
+            long startTime = getCurrentTime();
+            long startNanos = System.nanoTime();
+            Thread thread = new Thread(() -> {
+                while (player == Thread.currentThread()) {
+                    long time = startTime + (long) (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) * speed);
+                    advanceTo(Math.min(time, getEndTime()));
+                    if (time >= getEndTime())
+                        break;
+                    LockSupport.parkNanos(FRAME_NANOS);
+                }
+            }, "Replay");
+            thread.setDaemon(true);
+            player = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the playback started by play(), the replay stays at the time it has reached.
+     */
+    public void stop() {
+        synchronized (playerLock) {
+            Thread thread = player;
+            player = null;
+            if (thread == null || thread == Thread.currentThread())
+                return;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the replay is being played
+     */
+    public boolean isPlaying() {
+        Thread thread = player;
+        return thread != null && thread.isAlive();
+    }
+
+    /**
+     * Returns the monitor the replay moves the trains on, e.g. to show it in a MapPanel.
+     *
+     * @return monitor of the replayed map
+     */
+    public TunnelsMapMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * @return number of the recorded trains
+     */
+    public int getNumberOfTrains() {
+        return trains;
+    }
+
+    /**
+     * @return time the replay has reached, in ms since the start of the recording
+     */
+    public synchronized long getCurrentTime() {
+        return TimeUnit.MICROSECONDS.toMillis(currentTime);
+    }
+
+    /**
+     * @return time of the last recorded event, in ms since the start of the recording, rounded up
+     */
+    public long getEndTime() {
+        return TimeUnit.MICROSECONDS.toMillis(endTime + TimeUnit.MILLISECONDS.toMicros(1) - 1);
+    }
+
+    /**
+     * Returns the train holding the shared segment at the current time of the replay.
+     *
+     * @param segment position of the segment in the global order of the segments
+     * @return id of the train or TunnelsMapMonitor.NO_TRAIN
+     */
+    public synchronized int getSegmentOwner(int segment) {
+        return segment < segmentOwners.length ? segmentOwners[segment] : TunnelsMapMonitor.NO_TRAIN;
+    }
+}
@@ -0,0 +1,261 @@
+package metro.algorithm.sweep;
+
+import metro.algorithm.EventDrivenSimulation;
+import metro.algorithm.map.AdmissionMode;
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.TunnelsMap;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs many scenarios of the metro - route assignments and speeds of the trains - and compares their throughput
+ * and waiting times, without the GUI.
+ * <p>
+ * Every scenario runs in its own EventDrivenSimulation for the same simulated time, so the scenarios don't share
+ * any state, and the results are the same in every sweep. The scenarios are split between the threads
+ * of a ForkJoinPool, by default one per core.
+ *
+ * @see EventDrivenSimulation
+ */
+public class ParameterSweep {
+    /**
+     * Layout of the tunnels every scenario runs on
+     */
+    private final TunnelsMap map;
+
+    /**
+     * Simulated time every scenario runs, in ms
+     */
+    private final long duration;
+
+    /**
+     * How the trains of every scenario are admitted into the shared parts of their routes
+     */
+    private final AdmissionMode admissionMode;
+
+    /**
+     * @param map      layout of the tunnels every scenario runs on
+     * @param duration simulated time every scenario runs, in ms
+     */
+    public ParameterSweep(TunnelsMap map, long duration) {
+        this(map, duration, AdmissionMode.SEGMENTS);
+    }
+
+    /**
+     * @param map      layout of the tunnels every scenario runs on
+     * @param duration simulated time every scenario runs, in ms
+     * @param mode     how the trains of every scenario are admitted into the shared parts of their routes
+     */
+    public ParameterSweep(TunnelsMap map, long duration, AdmissionMode mode) {
+        if (duration <= 0)
+            throw new IllegalArgumentException("The duration has to be positive: " + duration);
+        this.map = map;
+        this.duration = duration;
+        this.admissionMode = mode;
+    }
+
+    /**
+     * Creates every scenario the GUI would accept: the trains start from different entrances, every route ends
+     * at another entrance and no two trains have the same route in the opposite directions.
+     * Each route assignment is combined with each of the speed settings.
+     *
+     * @param entrances     entrances the routes start and end at, e.g. TunnelsMap.getStationsEntrances()
+     * @param trains        number of trains
+     * @param speedSettings sleep times of the trains, each array has one value per train
+     * @return scenarios numbered from 0
+     * @throws IllegalArgumentException if a speed setting doesn't have one value per train
+     */
+    public static List<Scenario> createScenarios(List<Coordinates> entrances, int trains, List<int[]> speedSettings) {
+        for (int[] sleepTimes : speedSettings) {
+            if (sleepTimes.length != trains)
+                throw new IllegalArgumentException("Sleep times " + Arrays.toString(sleepTimes) + " don't match " + trains + " trains");
+        }
+        List<Coordinates[][]> assignments = new ArrayList<>();
+        addRouteAssignments(entrances, new Coordinates[trains][], 0, assignments);
+
+        List<Scenario> scenarios = new ArrayList<>(assignments.size() * speedSettings.size());
+        for (Coordinates[][] routes : assignments) {
+            for (int[] sleepTimes : speedSettings)
+                scenarios.add(new Scenario(scenarios.size(), routes, sleepTimes));
+        }
+        return scenarios;
+    }
+
+    /**
+     * Chooses the route of the given train and of every next one, adding each complete assignment to the list.
+     */
+    private static void addRouteAssignments(List<Coordinates> entrances, Coordinates[][] routes, int train,
+                                            List<Coordinates[][]> assignments) {
+        if (train == routes.length) {
+            assignments.add(routes.clone());
+            return;
+        }
+        for (Coordinates start : entrances) {
+            if (startTaken(routes, train, start))
+                continue;
+            for (Coordinates end : entrances) {
+                if (start.equals(end) || routeReversed(routes, train, start, end))
+                    continue;
+                routes[train] = new Coordinates[]{start, end};
+                addRouteAssignments(entrances, routes, train + 1, assignments);
+            }
+        }
+    }
+
+    private static boolean startTaken(Coordinates[][] routes, int train, Coordinates start) {
+        for (int i = 0; i < train; i++) {
+            if (routes[i][0].equals(start))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean routeReversed(Coordinates[][] routes, int train, Coordinates start, Coordinates end) {
+        for (int i = 0; i < train; i++) {
+            if (routes[i][0].equals(end) && routes[i][1].equals(start))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Creates every assignment of the given sleep times to the trains, e.g. for 2 trains and 100, 200:
+     * 100 100, 100 200, 200 100, 200 200.
+     *
+     * @param trains     number of trains
+     * @param sleepTimes simulated times in ms a train can spend on one tile
+     * @return speed settings for createScenarios
+     */
+    public static List<int[]> createSpeedSettings(int trains, int... sleepTimes) {
+        List<int[]> settings = new ArrayList<>();
+        int[] setting = new int[trains];
+        int count = (int) Math.pow(sleepTimes.length, trains);
+        for (int n = 0; n < count; n++) {
+            // the digits of n in base sleepTimes.length choose the sleep times, the last train's changes first
+            int digits = n;
+            for (int train = trains - 1; train >= 0; train--) {
+                setting[train] = sleepTimes[digits % sleepTimes.length];
+                digits /= sleepTimes.length;
+            }
+            settings.add(setting.clone());
+        }
+        return settings;
+    }
+
+    /**
+     * Runs one scenario in the current thread.
+     *
+     * @param scenario routes and speeds of the trains
+     * @return throughput and waiting times of the trains, or the reason the routes couldn't be planned
+     */
+    public ScenarioResult run(Scenario scenario) {
+        EventDrivenSimulation simulation;
+        try {
+            simulation = new EventDrivenSimulation(map, scenario.getRoutes(), admissionMode);
+        } catch (IllegalArgumentException e) {
+            return new ScenarioResult(scenario, e.getMessage());
+        }
+        int trains = scenario.getNumberOfTrains();
+        for (int i = 0; i < trains; i++)
+            simulation.setSleepTime(i, scenario.getSleepTime(i));
+        simulation.runUntil(duration);
+
+        long[] tilesMoved = new long[trains];
+        long[] roundTrips = new long[trains];
+        long[] waitTime = new long[trains];
+        for (int i = 0; i < trains; i++) {
+            tilesMoved[i] = simulation.getTilesMoved(i);
+            roundTrips[i] = simulation.getRoundTrips(i);
+            waitTime[i] = simulation.getWaitTime(i);
+        }
+        return new ScenarioResult(scenario, duration, simulation.getMonitor().getSegmentLock().getNumberOfSegments(),
+                simulation.isDeadlocked(), simulation.getCollisions() > 0, tilesMoved, roundTrips, waitTime);
+    }
+
+    /**
+     * Runs the scenarios on a new ForkJoinPool with one thread per core.
+     *
+     * @param scenarios scenarios to run
+     * @return results in the order of the scenarios
+     */
+    public List<ScenarioResult> run(List<Scenario> scenarios) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            return run(scenarios, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs the scenarios on the given pool. The list is split in halves until every task runs one scenario,
+     * so the idle threads steal the scenarios left by the busy ones.
+     *
+     * @param scenarios scenarios to run
+     * @param pool      pool running the scenarios
+     * @return results in the order of the scenarios
+     */
+    public List<ScenarioResult> run(List<Scenario> scenarios, ForkJoinPool pool) {
+        ScenarioResult[] results = new ScenarioResult[scenarios.size()];
+        pool.invoke(new SweepTask(scenarios, results, 0, results.length));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Writes the results to a CSV file, one row per scenario, with the ScenarioResult.CSV_HEADER columns.
+     *
+     * @param results results of the scenarios
+     * @param file    file the results are written to, replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public static void writeCsv(List<ScenarioResult> results, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(ScenarioResult.CSV_HEADER);
+            writer.newLine();
+            for (ScenarioResult result : results) {
+                writer.write(result.toCsvRow());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Runs the scenarios from start (inclusive) to end (exclusive), storing their results at the same positions
+     */
+    private class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Scenario> scenarios;
+        private final ScenarioResult[] results;
+        private final int start;
+        private final int end;
+
+        private SweepTask(List<Scenario> scenarios, ScenarioResult[] results, int start, int end) {
+            this.scenarios = scenarios;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                results[start] = run(scenarios.get(start));
+                return;
+            }
+            if (end == start)
+                return;
+            int middle = (start + end) >>> 1;
+            invokeAll(new SweepTask(scenarios, results, start, middle), new SweepTask(scenarios, results, middle, end));
+        }
+    }
+}
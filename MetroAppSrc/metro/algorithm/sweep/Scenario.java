@@ -0,0 +1,97 @@
+package metro.algorithm.sweep;
+
+import metro.algorithm.map.Coordinates;
+
+/**
+ * One configuration of the metro compared by a ParameterSweep: the route of every train and its speed.
+ *
+ * @see ParameterSweep
+ */
+public final class Scenario {
+    private final int id;
+
+    /**
+     * Start and end of the route of every train, indexed by train id
+     */
+    private final Coordinates[][] routes;
+
+    /**
+     * Simulated time every train spends on one tile in ms, indexed by train id
+     */
+    private final int[] sleepTimes;
+
+    /**
+     * @param id         number of the scenario, identifying it in the results
+     * @param routes     an array of Coordinates pairs, specifying each route's start and end
+     * @param sleepTimes simulated time in ms each train spends on one tile
+     * @throws IllegalArgumentException if the numbers of routes and sleep times differ
+     */
+    public Scenario(int id, Coordinates[][] routes, int[] sleepTimes) {
+        if (routes.length != sleepTimes.length)
+            throw new IllegalArgumentException(routes.length + " routes, but " + sleepTimes.length + " sleep times");
+        this.id = id;
+        this.routes = routes.clone();
+        this.sleepTimes = sleepTimes.clone();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return number of trains, equal to the number of routes
+     */
+    public int getNumberOfTrains() {
+        return routes.length;
+    }
+
+    /**
+     * @return an array of Coordinates pairs, specifying each route's start and end
+     */
+    public Coordinates[][] getRoutes() {
+        return routes.clone();
+    }
+
+    /**
+     * @param train id of the train
+     * @return simulated time in ms the train spends on one tile
+     */
+    public int getSleepTime(int train) {
+        return sleepTimes[train];
+    }
+
+    /**
+     * Describes the routes, e.g. (0,1)-(16,9) (16,1)-(1,0)
+     *
+     * @return starts and ends of the routes, separated by spaces
+     */
+    public String describeRoutes() {
+        StringBuilder text = new StringBuilder();
+        for (Coordinates[] route : routes) {
+            if (text.length() > 0)
+                text.append(' ');
+            text.append(route[0]).append('-').append(route[1]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Describes the speeds, e.g. 100 200 300
+     *
+     * @return sleep times of the trains, separated by spaces
+     */
+    public String describeSleepTimes() {
+        StringBuilder text = new StringBuilder();
+        for (int sleepTime : sleepTimes) {
+            if (text.length() > 0)
+                text.append(' ');
+            text.append(sleepTime);
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Scenario " + id + ": " + describeRoutes() + ", " + describeSleepTimes() + " ms";
+    }
+}
@@ -0,0 +1,189 @@
+package metro.algorithm.sweep;
+
+import java.util.Locale;
+
+/**
+ * Throughput and waiting times of the trains of one scenario of a ParameterSweep, or the reason it couldn't run.
+ *
+ * @see ParameterSweep
+ */
+public final class ScenarioResult {
+    /**
+     * Columns of the rows returned by toCsvRow()
+     */
+    public static final String CSV_HEADER = "scenario,routes,sleep_times,shared_segments,deadlocked,collided,"
+            + "tiles_per_second,round_trips,min_round_trips,wait_share,max_wait_ms,error";
+
+    private final Scenario scenario;
+
+    /**
+     * Simulated time the scenario ran in ms
+     */
+    private final long duration;
+    private final int sharedSegments;
+    private final boolean deadlocked;
+    /**
+     * True if a train moved onto a tile occupied by another train
+     */
+    private final boolean collided;
+
+    private final long[] tilesMoved;
+    private final long[] roundTrips;
+    /**
+     * Simulated time in ms each train waited for shared segments
+     */
+    private final long[] waitTime;
+
+    /**
+     * Reason the scenario couldn't run, e.g. a route that can't be planned, or null
+     */
+    private final String error;
+
+    ScenarioResult(Scenario scenario, long duration, int sharedSegments, boolean deadlocked, boolean collided,
+                   long[] tilesMoved, long[] roundTrips, long[] waitTime) {
+        this.scenario = scenario;
+        this.duration = duration;
+        this.sharedSegments = sharedSegments;
+        this.deadlocked = deadlocked;
+        this.collided = collided;
+        this.tilesMoved = tilesMoved;
+        this.roundTrips = roundTrips;
+        this.waitTime = waitTime;
+        this.error = null;
+    }
+
+    ScenarioResult(Scenario scenario, String error) {
+        this.scenario = scenario;
+        this.duration = 0;
+        this.sharedSegments = 0;
+        this.deadlocked = false;
+        this.collided = false;
+        this.tilesMoved = new long[0];
+        this.roundTrips = new long[0];
+        this.waitTime = new long[0];
+        this.error = error;
+    }
+
+    public Scenario getScenario() {
+        return scenario;
+    }
+
+    /**
+     * @return true if the scenario ran, false if it couldn't be created
+     */
+    public boolean isValid() {
+        return error == null;
+    }
+
+    /**
+     * @return reason the scenario couldn't run, or null if it ran
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return number of distinct shared segments of the routes
+     */
+    public int getSharedSegments() {
+        return sharedSegments;
+    }
+
+    /**
+     * @return true if the trains ended up waiting for each other's segments
+     */
+    public boolean isDeadlocked() {
+        return deadlocked;
+    }
+
+    /**
+     * @return true if a train moved onto a tile occupied by another train
+     */
+    public boolean hasCollided() {
+        return collided;
+    }
+
+    /**
+     * Returns the tiles moved by all the trains per simulated second, the throughput of the metro.
+     *
+     * @return tiles per second, 0 if the scenario didn't run
+     */
+    public double getTilesPerSecond() {
+        return duration == 0 ? 0 : sum(tilesMoved) * 1000.0 / duration;
+    }
+
+    /**
+     * @return round trips completed by all the trains
+     */
+    public long getRoundTrips() {
+        return sum(roundTrips);
+    }
+
+    /**
+     * @return round trips completed by the slowest train, 0 if the scenario didn't run
+     */
+    public long getMinRoundTrips() {
+        long min = roundTrips.length == 0 ? 0 : Long.MAX_VALUE;
+        for (long trips : roundTrips)
+            min = Math.min(min, trips);
+        return min;
+    }
+
+    /**
+     * Returns the part of the trains' time spent waiting for shared segments.
+     *
+     * @return value between 0 (no train waited) and 1 (every train waited all the time)
+     */
+    public double getWaitShare() {
+        return duration == 0 ? 0 : (double) sum(waitTime) / (duration * waitTime.length);
+    }
+
+    /**
+     * @return the longest total time in ms a train waited for shared segments
+     */
+    public long getMaxWaitMillis() {
+        long max = 0;
+        for (long wait : waitTime)
+            max = Math.max(max, wait);
+        return max;
+    }
+
+    /**
+     * @return the result as a row of the CSV_HEADER columns
+     */
+    public String toCsvRow() {
+        return String.join(",",
+                Integer.toString(scenario.getId()),
+                quote(scenario.describeRoutes()),
+                scenario.describeSleepTimes(),
+                Integer.toString(sharedSegments),
+                Boolean.toString(deadlocked),
+                Boolean.toString(collided),
+                String.format(Locale.ROOT, "%.3f", getTilesPerSecond()),
+                Long.toString(getRoundTrips()),
+                Long.toString(getMinRoundTrips()),
+                String.format(Locale.ROOT, "%.4f", getWaitShare()),
+                Long.toString(getMaxWaitMillis()),
+                error == null ? "" : quote(error));
+    }
+
+    private static String quote(String text) {
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null)
+            return scenario + ": " + error;
+        return String.format(Locale.ROOT, "%s: %.1f tiles/s, %d round trips, %.1f%% waiting%s%s",
+                scenario, getTilesPerSecond(), getRoundTrips(), getWaitShare() * 100, deadlocked ? ", deadlocked" : "",
+                collided ? ", collided" : "");
+    }
+}
@@ -1,24 +1,36 @@
 package metro.gui;
 
-import metro.algorithm.map.Coordinates;
 import metro.algorithm.map.FieldTypes;
+import metro.algorithm.map.MapSnapshot;
+import metro.algorithm.map.TunnelsMap;
 import metro.algorithm.map.TunnelsMapMonitor;
+import metro.algorithm.metrics.TileMetrics;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 /**
  * Class used to show the tunnel's map state in the GUI.
+ * <p>
+ * The map is rendered to an offscreen frame, which is copied to the screen by paintComponent.
+ * The layout (background, labels, walls and stations) never changes, so it's rendered once to its own image.
+ * When the trains move, only the tiles they changed are copied from the layout image, painted with the trains
+ * and repainted on the screen, so the cost of a frame depends on the number of moving wagons, not on the map's size.
+ * <p>
+ * The tiles can be colored by a heatmap of the waiting times or of the occupancy (see setHeatmap, or the panel's
+ * popup menu). The heat of a tile changes only when a train enters it, so it's repainted with the other changes.
  */
 public class MapPanel extends JPanel {
     /**
      * Rows in the tunnel's map
      */
-    private final int tileRows = 17;
+    private int tileRows;
     /**
      * Columns in the tunnel's map
      */
-    private final int tileCols = 11;
+    private int tileCols;
 
     private final int preferredWidth = 856;
     private final int preferredHeight = 652;
@@ -55,12 +67,127 @@ public class MapPanel extends JPanel {
      */
     TunnelsMapMonitor tunnelsMapMonitor;
 
+    /**
+     * Colors of the trains, indexed by train id.
+     * Colors of the first trains are fixed, the next ones are generated when needed.
+     */
+    private Color[] trainColors = {Color.CYAN, new Color(255, 204, 153), Color.YELLOW};
+
+    /**
+     * Color of the station tiles
+     */
+    private static final Color STATION_COLOR = new Color(128, 0, 0); //brown
+
+    /**
+     * Values the tiles can be colored by, under the trains
+     */
+    public enum Heatmap {
+        /**
+         * No heatmap, only the layout and the trains
+         */
+        NONE,
+        /**
+         * Total time the trains waited for the shared segments before entering the tile
+         */
+        WAIT_TIME,
+        /**
+         * Number of times a train entered the tile
+         */
+        OCCUPANCY
+    }
+
+    /**
+     * Number of colors of the heatmap
+     */
+    private static final int HEAT_LEVELS = 32;
+
+    /**
+     * Colors of the heatmap, from the coolest to the hottest
+     */
+    private static final Color[] HEAT_COLORS = new Color[HEAT_LEVELS];
+
+    static {
+        for (int i = 0; i < HEAT_LEVELS; i++) {
+            float heat = (i + 1) / (float) HEAT_LEVELS;
+            // from pale yellow to red
+            HEAT_COLORS[i] = Color.getHSBColor(0.17f * (1 - heat), 0.2f + 0.8f * heat, 1f);
+        }
+    }
+
+    /**
+     * Heatmap painted under the trains
+     */
+    private Heatmap heatmap = Heatmap.NONE;
+
+    /**
+     * Value painted with the hottest color. When a tile gets hotter, the scale is doubled and the frame rendered again,
+     * so the whole frame is rendered only a logarithmic number of times.
+     */
+    private long heatScale = 1;
+
+    /**
+     * Layout of the map without the trains, rendered for the current size of the panel
+     */
+    private BufferedImage layoutImage;
+
+    /**
+     * The layout with the trains, copied to the screen by paintComponent
+     */
+    private BufferedImage frameImage;
+    private Graphics2D frameGraphics;
+
+    /**
+     * False if the frame has to be rendered from scratch, e.g. after the monitor changed
+     */
+    private boolean frameValid = false;
+
+    /**
+     * Repaints the changed tiles when the trains move, at most once per frame
+     */
+    private final RepaintScheduler repaintScheduler = new RepaintScheduler(this::repaintChanges);
+
     /**
      * @param monitor Reference to the tunnel's map monitor the mapPanel will draw
      */
     public MapPanel(TunnelsMapMonitor monitor) {
         super();
-        tunnelsMapMonitor = monitor;
+        setMapSize(monitor);
+        setComponentPopupMenu(createHeatmapMenu());
+    }
+
+    /**
+     * Creates the popup menu switching the heatmaps.
+     */
+    private JPopupMenu createHeatmapMenu() {
+        JPopupMenu menu = new JPopupMenu();
+        ButtonGroup group = new ButtonGroup();
+        for (Heatmap value : Heatmap.values()) {
+            String label = switch (value) {
+                case WAIT_TIME -> "Heatmap: waiting time";
+                case OCCUPANCY -> "Heatmap: occupancy";
+                default -> "No heatmap";
+            };
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(label, value == heatmap);
+            item.addActionListener(e -> setHeatmap(value));
+            group.add(item);
+            menu.add(item);
+        }
+        return menu;
+    }
+
+    /**
+     * Sets the heatmap painted under the trains and repaints the JPanel.
+     *
+     * @param heatmap values to color the tiles by, or Heatmap.NONE
+     */
+    public void setHeatmap(Heatmap heatmap) {
+        this.heatmap = heatmap;
+        frameValid = false;
+        repaint();
+    }
+
+    public Heatmap getHeatmap() {
+        return heatmap;
     }
 
     /**
@@ -69,11 +196,25 @@ public class MapPanel extends JPanel {
      * @param monitor Reference to the tunnel's map monitor the mapPanel will draw
      */
     public void setTunnelsMapMonitor(TunnelsMapMonitor monitor) {
-        this.tunnelsMapMonitor = monitor;
+        setMapSize(monitor);
         revalidate();
         repaint();
     }
 
+    /**
+     * Sets the monitor and the size of its map.
+     * The panel stops listening to the moves of the trains of the previous monitor.
+     */
+    private void setMapSize(TunnelsMapMonitor monitor) {
+        if (tunnelsMapMonitor != null)
+            tunnelsMapMonitor.removeChangeListener(repaintScheduler);
+        tunnelsMapMonitor = monitor;
+        monitor.addChangeListener(repaintScheduler);
+        tileRows = monitor.getHeight();
+        tileCols = monitor.getWidth();
+        frameValid = false;
+    }
+
     @Override
     public Dimension getPreferredSize() {
         return new Dimension(preferredWidth, preferredHeight);
@@ -81,28 +222,138 @@ public class MapPanel extends JPanel {
 
     /**
      * Overrides the default method.
-     * Paints the tiles, filling them with a color specified by field's type.
+     * Copies the rendered frame to the screen, rendering it from scratch first if it's outdated.
      */
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
-        width = getWidth();
-        height = getHeight();
+        if (!frameValid || frameImage == null || getWidth() != width || getHeight() != height)
+            renderFrame();
+        g.drawImage(frameImage, 0, 0, null);
+    }
+
+    /**
+     * Repaints the tiles changed by the trains since the previous frame.
+     * Called on the event dispatch thread when the trains move.
+     */
+    public void repaintChanges() {
+        if (!frameValid || frameImage == null || getMaxHeat() > heatScale) {
+            frameValid = false;
+            repaint();
+            return;
+        }
+        tunnelsMapMonitor.drainChangedCells(cell -> {
+            int row = cell / tileCols;
+            int col = cell % tileCols;
+            paintTile(frameGraphics, row, col, tunnelsMapMonitor.getOccupant(cell));
+            repaint(col * tileWidth + rowLabelWidth, row * tileHeight + colLabelHeight, tileWidth, tileHeight);
+        });
+    }
+
+    /**
+     * Renders the layout and the whole frame for the current size of the panel.
+     */
+    private void renderFrame() {
+        width = Math.max(1, getWidth());
+        height = Math.max(1, getHeight());
+        // large maps get tiles of at least one pixel, even if they don't fit in the panel
+        tileWidth = Math.max(1, (width - rowLabelWidth) / tileCols);
+        tileHeight = Math.max(1, (height - colLabelHeight) / tileRows);
+        int gap = Math.min(spacing, Math.min(tileWidth, tileHeight) / 4);
+        TunnelsMap map = tunnelsMapMonitor.getMap();
+
+        if (layoutImage == null || layoutImage.getWidth() != width || layoutImage.getHeight() != height) {
+            layoutImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            frameImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            if (frameGraphics != null)
+                frameGraphics.dispose();
+            frameGraphics = frameImage.createGraphics();
+        }
+
+        Graphics2D g = layoutImage.createGraphics();
         this.setBackground(Color.DARK_GRAY);
         g.setColor(Color.DARK_GRAY);
         g.fillRect(0, 0, width, height);
-
-        tileWidth = (width - rowLabelWidth) / tileCols;
-        tileHeight = (height - colLabelHeight) / tileRows;
-
         drawLabels(g);
-
         for (int i = 0; i < tileCols; i++) {
             for (int j = 0; j < tileRows; j++) {
-                FieldTypes field = tunnelsMapMonitor.getField(new Coordinates(j, i));
-                setTileColor(g, field);
-                g.fillRect(spacing + i * tileWidth + rowLabelWidth, spacing + j * tileHeight + colLabelHeight, tileWidth - spacing * 2, tileHeight - spacing * 2);
+                setTileColor(g, map.getField(j, i));
+                g.fillRect(gap + i * tileWidth + rowLabelWidth, gap + j * tileHeight + colLabelHeight, tileWidth - gap * 2, tileHeight - gap * 2);
+            }
+        }
+        g.dispose();
+
+        // the changes made until now are in the copy, the ones made later will be repainted in the next frame
+        tunnelsMapMonitor.drainChangedCells(cell -> {
+        });
+        heatScale = Math.max(1, getMaxHeat() * 2);
+        frameGraphics.drawImage(layoutImage, 0, 0, null);
+        // painting a snapshot of the trains' positions, so the whole frame shows the same moment
+        try (MapSnapshot snapshot = tunnelsMapMonitor.snapshot()) {
+            for (int cell = 0; cell < tileRows * tileCols; cell++) {
+                int occupant = snapshot.getOccupant(cell);
+                if (occupant != TunnelsMapMonitor.NO_TRAIN || getHeat(cell) > 0)
+                    paintTile(frameGraphics, cell / tileCols, cell % tileCols, occupant);
             }
         }
+        frameValid = true;
+    }
+
+    /**
+     * Paints one tile of the frame: copies it from the layout, paints its heat
+     * and the train on it, if there is one.
+     */
+    private void paintTile(Graphics2D g, int row, int col, int occupant) {
+        int x = col * tileWidth + rowLabelWidth;
+        int y = row * tileHeight + colLabelHeight;
+        int gap = Math.min(spacing, Math.min(tileWidth, tileHeight) / 4);
+        g.drawImage(layoutImage, x, y, x + tileWidth, y + tileHeight, x, y, x + tileWidth, y + tileHeight, null);
+        long heat = getHeat(row * tileCols + col);
+        if (heat > 0) {
+            g.setColor(getHeatColor(heat));
+            g.fillRect(x + gap, y + gap, tileWidth - gap * 2, tileHeight - gap * 2);
+        }
+        if (occupant != TunnelsMapMonitor.NO_TRAIN) {
+            // the train is painted smaller on a heated tile, so the heat stays visible around it
+            int trainGap = heat > 0 ? gap + Math.min(tileWidth, tileHeight) / 6 : gap;
+            g.setColor(getTrainColor(occupant));
+            g.fillRect(x + trainGap, y + trainGap, tileWidth - trainGap * 2, tileHeight - trainGap * 2);
+        }
+    }
+
+    /**
+     * Returns the value of the current heatmap for the tile.
+     *
+     * @param cell packed index of the tile
+     * @return heat of the tile, 0 if there is no heatmap
+     */
+    private long getHeat(int cell) {
+        TileMetrics tiles = tunnelsMapMonitor.getTileMetrics();
+        return switch (heatmap) {
+            case WAIT_TIME -> tiles.getWaitNanos(cell);
+            case OCCUPANCY -> tiles.getEntries(cell);
+            default -> 0;
+        };
+    }
+
+    /**
+     * Returns the highest value of the current heatmap, kept up to date by the counters, so no tile is scanned.
+     */
+    private long getMaxHeat() {
+        TileMetrics tiles = tunnelsMapMonitor.getTileMetrics();
+        return switch (heatmap) {
+            case WAIT_TIME -> tiles.getMaxWaitNanos();
+            case OCCUPANCY -> tiles.getMaxEntries();
+            default -> 0;
+        };
+    }
+
+    /**
+     * Returns the color of the heat on a logarithmic scale up to heatScale,
+     * so the tiles entered rarely are still distinguishable from the ones never entered.
+     */
+    private Color getHeatColor(long heat) {
+        int level = (int) (HEAT_LEVELS * Math.log1p(heat) / Math.log1p(heatScale));
+        return HEAT_COLORS[Math.min(HEAT_LEVELS - 1, Math.max(0, level))];
     }
 
     /**
@@ -129,11 +380,26 @@ public class MapPanel extends JPanel {
     private void setTileColor(Graphics g, FieldTypes field) {
         switch (field) {
             case WALL -> g.setColor(Color.GRAY);
-            case STATION -> g.setColor(new Color(128, 0, 0)); //brown
-            case T1 -> g.setColor(Color.CYAN);
-            case T2 -> g.setColor(new Color(255, 204, 153));
-            case T3 -> g.setColor(Color.YELLOW);
+            case STATION -> g.setColor(STATION_COLOR);
             default -> g.setColor(Color.WHITE);
         }
     }
+
+    /**
+     * Returns the color of the given train.
+     * Trains without a fixed color get evenly spread hues.
+     *
+     * @param train id of the train
+     * @return color the train is painted with
+     */
+    private Color getTrainColor(int train) {
+        if (train >= trainColors.length) {
+            int oldLength = trainColors.length;
+            trainColors = Arrays.copyOf(trainColors, Math.max(train + 1, oldLength * 2));
+            for (int i = oldLength; i < trainColors.length; i++)
+                // golden ratio keeps the hues of consecutive trains far from each other
+                trainColors[i] = Color.getHSBColor((i * 0.618034f) % 1f, 0.6f, 1f);
+        }
+        return trainColors[train];
+    }
 }
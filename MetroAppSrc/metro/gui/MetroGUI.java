@@ -1,8 +1,8 @@
 package metro.gui;
 
 import metro.algorithm.SimulationModel;
+import metro.algorithm.map.AdmissionMode;
 import metro.algorithm.map.Coordinates;
-import metro.algorithm.map.FieldTypes;
 import metro.algorithm.map.TunnelsMapMonitor;
 
 import javax.swing.*;
@@ -10,7 +10,6 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The main class of this app's GUI.
@@ -67,6 +66,13 @@ public class MetroGUI extends JFrame {
     private int actT2Speed = 200;
     private int actT3Speed = 300;
 
+    /**
+     * Speeds of the whole simulation offered by the map's popup menu, in simulated ms per real ms
+     */
+    private static final int[] TIME_SCALES = {1, 10, 100};
+
+    private int actTimeScale = 1;
+
     /**
      * The simulation model of the metro
      */
@@ -77,11 +83,6 @@ public class MetroGUI extends JFrame {
      */
     private TunnelsMapMonitor tunnelsMapMonitor;
 
-    /**
-     * Used to manage the execution of the updateGUI thread.
-     */
-    private final AtomicBoolean isRunning = new AtomicBoolean(false);
-
     private Coordinates[][] routes;
 
     /**
@@ -140,49 +141,37 @@ public class MetroGUI extends JFrame {
 
 
     private void addListeners() {
+        addTimeScaleMenu();
+        addAdmissionModeMenu();
+
         startPauseButton.addActionListener(e -> {
             if (startPauseButton.getText().equals("Launch simulation")) {
 //                createNewSimulation();
                 metro.restart();
-                isRunning.set(true);
-                new SwingWorker<Void, Void>() {
-                    @Override
-                    protected Void doInBackground() {
-                        while (isRunning.get()) {
-                            updateGUI();
-                            try {
-                                Thread.sleep(30);
-                            } catch (InterruptedException interruptedException) {
-                                interruptedException.printStackTrace();
-                            }
-                        }
-                        return null;
-                    }
-                }.execute();
-
-                startPauseButton.setText("Pause after train arrives");
-                startPauseButton.setToolTipText("Stops after train arrives at the station.");
+                startPauseButton.setText("Pause simulation");
+                startPauseButton.setToolTipText("Stops every train at its next tile.");
             } else {
-                if (startPauseButton.getText().equals("Pause after train arrives")) {
+                if (startPauseButton.getText().equals("Pause simulation")) {
                     metro.pause();
                     startPauseButton.setText("Resume simulation");
                     startPauseButton.setToolTipText("Restarts current simulation");
                 } else {
                     // resume simulation
                     metro.restart();
-                    startPauseButton.setText("Pause after train arrives");
-                    startPauseButton.setToolTipText("Stops after train arrives at the station.");
+                    startPauseButton.setText("Pause simulation");
+                    startPauseButton.setToolTipText("Stops every train at its next tile.");
                 }
             }
         });
 
         newSimButton.addActionListener(e -> {
             if (routesAreValid()) {
-                // first we stop the model
-                metro.end();
-                // then we stop the thread that's updating the map
-                isRunning.set(false);
-                createNewSimulation();
+                try {
+                    createNewSimulation();
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(this, ex.getMessage());
+                    return;
+                }
 
                 startPauseButton.setText("Launch simulation");
                 startPauseButton.setToolTipText("Starts the new simulation");
@@ -196,8 +185,6 @@ public class MetroGUI extends JFrame {
         });
 
         resetButton.addActionListener(e -> {
-            metro.end();
-            isRunning.set(false);
             resetSimulation();
             startPauseButton.setText("Launch simulation");
             startPauseButton.setToolTipText("Starts the new simulation");
@@ -210,7 +197,7 @@ public class MetroGUI extends JFrame {
             JSlider source = (JSlider) e.getSource();
             if (!source.getValueIsAdjusting()) {
                 int speed = source.getValue();
-                metro.setSleepTime(FieldTypes.T1, speed);
+                metro.setSleepTime(0, speed);
                 actT1Speed = speed;
             }
         });
@@ -219,7 +206,7 @@ public class MetroGUI extends JFrame {
             JSlider source = (JSlider) e.getSource();
             if (!source.getValueIsAdjusting()) {
                 int speed = source.getValue();
-                metro.setSleepTime(FieldTypes.T2, speed);
+                metro.setSleepTime(1, speed);
                 actT2Speed = speed;
             }
         });
@@ -228,33 +215,76 @@ public class MetroGUI extends JFrame {
             JSlider source = (JSlider) e.getSource();
             if (!source.getValueIsAdjusting()) {
                 int speed = source.getValue();
-                metro.setSleepTime(FieldTypes.T3, speed);
+                metro.setSleepTime(2, speed);
                 actT3Speed = speed;
             }
         });
     }
 
     /**
-     * Creates new SimulationModel object based on current parameters
-     * Updates attributes of the gui.
+     * Adds the speeds of the whole simulation to the popup menu of the map.
+     */
+    private void addTimeScaleMenu() {
+        JPopupMenu menu = mapPanelType.getComponentPopupMenu();
+        menu.addSeparator();
+        ButtonGroup group = new ButtonGroup();
+        for (int timeScale : TIME_SCALES) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem("Speed: " + timeScale + "x", timeScale == actTimeScale);
+            item.addActionListener(e -> {
+                metro.setTimeScale(timeScale);
+                actTimeScale = timeScale;
+            });
+            group.add(item);
+            menu.add(item);
+        }
+    }
+
+    /**
+     * Adds the admission modes of the shared segments to the popup menu of the map.
+     * Switching the mode starts the current simulation over.
+     */
+    private void addAdmissionModeMenu() {
+        JPopupMenu menu = mapPanelType.getComponentPopupMenu();
+        menu.addSeparator();
+        ButtonGroup group = new ButtonGroup();
+        for (AdmissionMode mode : AdmissionMode.values()) {
+            String label = mode == AdmissionMode.SEGMENTS ? "Trains take shared segments alone" : "Trains follow each other tile by tile";
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(label, mode == metro.getAdmissionMode());
+            item.addActionListener(e -> {
+                if (mode == metro.getAdmissionMode())
+                    return;
+                metro.reset(routes, mode);
+                metro.setSleepTime(0, actT1Speed);
+                metro.setSleepTime(1, actT2Speed);
+                metro.setSleepTime(2, actT3Speed);
+                startPauseButton.setText("Launch simulation");
+                startPauseButton.setToolTipText("Starts the new simulation");
+            });
+            group.add(item);
+            menu.add(item);
+        }
+    }
+
+    /**
+     * Resets the simulation to the current parameters.
+     * The old trains are stopped, the monitor and its map panel are reused.
+     *
+     * @throws IllegalArgumentException if the trains can't run on the routes, the simulation doesn't change then
      */
     private void createNewSimulation() {
-        routes = getRoutes();
-        metro = new SimulationModel(routes);
-        tunnelsMapMonitor = metro.getMonitor();
-        mapPanelType.setTunnelsMapMonitor(tunnelsMapMonitor);
-        metro.setSleepTime(FieldTypes.T1, actT1Speed);
-        metro.setSleepTime(FieldTypes.T2, actT2Speed);
-        metro.setSleepTime(FieldTypes.T3, actT3Speed);
+        Coordinates[][] newRoutes = getRoutes();
+        metro.reset(newRoutes);
+        routes = newRoutes;
+        metro.setSleepTime(0, actT1Speed);
+        metro.setSleepTime(1, actT2Speed);
+        metro.setSleepTime(2, actT3Speed);
     }
 
     /**
      * Resets current simulation to its initial state.
      */
     private void resetSimulation() {
-        metro = new SimulationModel(routes);
-        tunnelsMapMonitor = metro.getMonitor();
-        mapPanelType.setTunnelsMapMonitor(tunnelsMapMonitor);
+        metro.reset(routes);
     }
 
     /**
@@ -317,19 +347,6 @@ public class MetroGUI extends JFrame {
     }
 
 
-    /**
-     * Thread-safely reads the map from the monitor and paints it in the GUI
-     */
-    public void updateGUI() {
-        tunnelsMapMonitor.beginPainting();
-        try {
-            mapPanel.revalidate();
-            mapPanel.repaint();
-        } finally {
-            tunnelsMapMonitor.endPainting();
-        }
-    }
-
     private void setTheme() {
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
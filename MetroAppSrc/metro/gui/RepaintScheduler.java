@@ -0,0 +1,77 @@
+package metro.gui;
+
+import metro.algorithm.map.MapChangeListener;
+
+import javax.swing.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns the change notifications of the trains into at most one repaint per frame.
+ * <p>
+ * The first change after a frame schedules the next one on the event dispatch thread,
+ * every other change until then only finds the frame already scheduled.
+ * Nothing runs when no train moves, and many moving trains can't queue more than one frame.
+ */
+class RepaintScheduler implements MapChangeListener {
+    /**
+     * Minimal time between two frames in ms (about 60 frames per second)
+     */
+    private static final int FRAME_MILLIS = 16;
+
+    /**
+     * Paints the frame, called on the event dispatch thread
+     */
+    private final Runnable frame;
+
+    /**
+     * Set when a frame is scheduled and the changes don't have to schedule another one
+     */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * Delays the frame if the previous one was painted less than FRAME_MILLIS ago.
+     * Used only on the event dispatch thread.
+     */
+    private Timer timer;
+
+    /**
+     * Time the last frame was painted, in ms. Used only on the event dispatch thread.
+     */
+    private long lastFrame = 0;
+
+    /**
+     * @param frame action painting the frame, called on the event dispatch thread
+     */
+    RepaintScheduler(Runnable frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public void mapChanged() {
+        // reading first, so the trains don't fight over the flag while a frame is scheduled
+        if (pending.get() || !pending.compareAndSet(false, true))
+            return;
+        SwingUtilities.invokeLater(this::scheduleFrame);
+    }
+
+    private void scheduleFrame() {
+        long delay = lastFrame + FRAME_MILLIS - System.currentTimeMillis();
+        if (delay <= 0) {
+            paintFrame();
+            return;
+        }
+        if (timer == null) {
+            timer = new Timer(FRAME_MILLIS, e -> paintFrame());
+            timer.setRepeats(false);
+        }
+        timer.setInitialDelay((int) delay);
+        timer.restart();
+    }
+
+    private void paintFrame() {
+        // cleared before painting, so the changes made during the frame schedule the next one
+        pending.set(false);
+        lastFrame = System.currentTimeMillis();
+        frame.run();
+    }
+}
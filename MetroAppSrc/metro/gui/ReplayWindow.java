@@ -0,0 +1,101 @@
+package metro.gui;
+
+import metro.algorithm.replay.SimulationReplay;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Window replaying a recorded simulation: the map, a slider to move through the recording and the playback controls.
+ *
+ * @see SimulationReplay
+ */
+public class ReplayWindow extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time between two updates of the slider in ms
+     */
+    private static final int SLIDER_UPDATE_MILLIS = 100;
+
+    private static final Double[] SPEEDS = {0.25, 0.5, 1.0, 2.0, 5.0, 10.0, 50.0};
+
+    private final SimulationReplay replay;
+
+    private final JSlider timeSlider;
+    private final JButton playButton = new JButton("Play");
+    private final JComboBox<Double> speedBox = new JComboBox<>(SPEEDS);
+    private final JLabel timeLabel = new JLabel();
+
+    /**
+     * Set while the slider follows the playback, so its changes aren't taken for the user's seeking
+     */
+    private boolean updatingSlider = false;
+
+    /**
+     * @param replay opened replay of a recorded simulation
+     */
+    public ReplayWindow(SimulationReplay replay) {
+        super("Metro replay");
+        this.replay = replay;
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        timeSlider = new JSlider(0, (int) Math.min(Integer.MAX_VALUE, replay.getEndTime()), 0);
+        timeSlider.addChangeListener(e -> {
+            if (!updatingSlider) {
+                replay.seek(timeSlider.getValue());
+                updateTimeLabel();
+            }
+        });
+        speedBox.setSelectedItem(1.0);
+        speedBox.addActionListener(e -> {
+            if (replay.isPlaying())
+                replay.play(getSpeed());
+        });
+        playButton.addActionListener(e -> {
+            if (replay.isPlaying()) {
+                replay.stop();
+            } else {
+                if (replay.getCurrentTime() >= replay.getEndTime())
+                    replay.seek(0);
+                replay.play(getSpeed());
+            }
+            updateControls();
+        });
+
+        JPanel controls = new JPanel(new BorderLayout(5, 0));
+        JPanel buttons = new JPanel();
+        buttons.add(playButton);
+        buttons.add(new JLabel("Speed:"));
+        buttons.add(speedBox);
+        controls.add(buttons, BorderLayout.WEST);
+        controls.add(timeSlider, BorderLayout.CENTER);
+        controls.add(timeLabel, BorderLayout.EAST);
+
+        getContentPane().add(new MapPanel(replay.getMonitor()), BorderLayout.CENTER);
+        getContentPane().add(controls, BorderLayout.SOUTH);
+        new Timer(SLIDER_UPDATE_MILLIS, e -> updateControls()).start();
+        updateControls();
+        pack();
+        setVisible(true);
+    }
+
+    private double getSpeed() {
+        return (Double) speedBox.getSelectedItem();
+    }
+
+    /**
+     * Moves the slider to the current time of the replay and updates the play button.
+     */
+    private void updateControls() {
+        updatingSlider = true;
+        timeSlider.setValue((int) Math.min(Integer.MAX_VALUE, replay.getCurrentTime()));
+        updatingSlider = false;
+        playButton.setText(replay.isPlaying() ? "Pause" : "Play");
+        updateTimeLabel();
+    }
+
+    private void updateTimeLabel() {
+        timeLabel.setText(String.format("%.1f / %.1f s", replay.getCurrentTime() / 1000.0, replay.getEndTime() / 1000.0));
+    }
+}
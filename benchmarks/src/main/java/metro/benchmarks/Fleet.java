@@ -0,0 +1,56 @@
+package metro.benchmarks;
+
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.TunnelsMap;
+import metro.algorithm.map.TunnelsMapMonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates fleets of trains of any size for the benchmarks.
+ * Trains start at the station entrances in turn and go to the entrance on the other side of the list,
+ * so the routes are the same in every run.
+ */
+final class Fleet {
+    private Fleet() {
+    }
+
+    /**
+     * Creates the parameters of a simulation with the given number of trains.
+     *
+     * @param trains number of trains
+     * @return parameters with trains' wagons and routes
+     */
+    static ModelParameters create(int trains) {
+        List<Coordinates> entrances = TunnelsMap.getDefault().getStationsEntrances();
+
+        Coordinates[][] routes = new Coordinates[trains][];
+        for (int i = 0; i < trains; i++) {
+            Coordinates start = entrances.get(i % entrances.size());
+            Coordinates end = entrances.get((i + entrances.size() / 2) % entrances.size());
+            routes[i] = new Coordinates[]{start, end};
+        }
+        return new ModelParameters(routes);
+    }
+
+    /**
+     * Lists every tile the head of the train passes through along its route.
+     *
+     * @param monitor   monitor of the map the train moves on
+     * @param crossings crossings of the route
+     * @return packed indexes of the tiles from the first to the last crossing, both inclusive
+     */
+    static int[] tiles(TunnelsMapMonitor monitor, Coordinates[] crossings) {
+        List<Integer> tiles = new ArrayList<>();
+        for (int i = 0; i < crossings.length - 1; i++) {
+            int cell = monitor.cellOf(crossings[i]);
+            int step = monitor.cellStep(crossings[i], crossings[i + 1]);
+            for (int j = 0; j < TunnelsMapMonitor.distance(crossings[i], crossings[i + 1]); j++, cell += step)
+                tiles.add(cell);
+        }
+        tiles.add(monitor.cellOf(crossings[crossings.length - 1]));
+        return tiles.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,73 @@
+package metro.benchmarks;
+
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.TunnelsMapMonitor;
+import metro.gui.MapPanel;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures MapPanel painting a whole frame and painting only the tiles changed by one move of every train.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MapPanelPaintBenchmark {
+    @Param({"3", "12", "48"})
+    int trains;
+
+    MapPanel panel;
+    TunnelsMapMonitor monitor;
+    BufferedImage image;
+    Graphics2D graphics;
+
+    int[][] tiles;
+    int tile = 0;
+    int direction = 1;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ModelParameters params = Fleet.create(trains);
+        monitor = new TunnelsMapMonitor(params.trains, params.crossings);
+        panel = new MapPanel(monitor);
+        tiles = new int[trains][];
+        for (int i = 0; i < trains; i++)
+            tiles[i] = Fleet.tiles(monitor, params.crossings[i]);
+        Dimension size = panel.getPreferredSize();
+        panel.setSize(size);
+        image = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+        panel.paintComponent(graphics);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graphics.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paintFullFrame() {
+        // setting the monitor makes the panel render the whole frame again
+        panel.setTunnelsMapMonitor(monitor);
+        panel.paintComponent(graphics);
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage paintChanges() {
+        if (tile + direction < 0 || tile + direction >= tiles[0].length)
+            direction = -direction;
+        tile += direction;
+        for (int train = 0; train < trains; train++)
+            monitor.moveTrain(train, tiles[train][Math.min(tile, tiles[train].length - 1)]);
+        // Swing copies only the repainted tiles to the screen, so the copy isn't measured here
+        panel.repaintChanges();
+        return image;
+    }
+}
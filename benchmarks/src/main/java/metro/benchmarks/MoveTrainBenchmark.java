@@ -0,0 +1,89 @@
+package metro.benchmarks;
+
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.TunnelsMapMonitor;
+import metro.algorithm.replay.EventLogWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures TunnelsMapMonitor.moveTrain with several threads moving their trains at the same time.
+ * Each thread drives one train back and forth along its route without waiting.
+ * Use -t to change the number of threads, it can't be greater than the number of trains.
+ * With recorded=true, every move is also written to an event log.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MoveTrainBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class MapState {
+        @Param({"4", "12", "48"})
+        int trains;
+
+        @Param({"false", "true"})
+        boolean recorded;
+
+        ModelParameters params;
+        TunnelsMapMonitor monitor;
+        final AtomicInteger nextTrain = new AtomicInteger();
+
+        Path logFile;
+        EventLogWriter eventLog;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            params = Fleet.create(trains);
+            monitor = new TunnelsMapMonitor(params.trains, params.crossings);
+            if (recorded) {
+                logFile = Files.createTempFile("metro", ".log");
+                eventLog = new EventLogWriter(logFile, monitor, params.crossings);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if (eventLog != null) {
+                eventLog.close();
+                Files.delete(logFile);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class TrainState {
+        int train;
+        int[] tiles;
+        int tile;
+        int direction = 1;
+
+        @Setup(Level.Trial)
+        public void setUp(MapState map) {
+            train = map.nextTrain.getAndIncrement();
+            if (train >= map.trains)
+                throw new IllegalStateException("Every thread has to move its own train, use more trains or less threads");
+            tiles = Fleet.tiles(map.monitor, map.params.crossings[train]);
+        }
+
+        int nextTile() {
+            if (tile + direction < 0 || tile + direction >= tiles.length)
+                direction = -direction;
+            tile += direction;
+            return tiles[tile];
+        }
+    }
+
+    @Benchmark
+    public void moveTrain(MapState map, TrainState train) {
+        map.monitor.moveTrain(train.train, train.nextTile());
+    }
+}
@@ -0,0 +1,52 @@
+package metro.benchmarks;
+
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.Coordinates;
+import metro.algorithm.map.SegmentLock;
+import metro.algorithm.map.TunnelsMapMonitor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures SegmentLock.lockTrainSegments and unlockTrainSegments for fleets of growing size,
+ * and therefore growing number of shared segments.
+ * One operation is a whole round trip of one train: entering and leaving every crossing of its route in both directions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SegmentLockBenchmark {
+    @Param({"3", "12", "48", "96"})
+    int trains;
+
+    ModelParameters params;
+    SegmentLock segmentLock;
+    int train;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        params = Fleet.create(trains);
+        segmentLock = new TunnelsMapMonitor(params.trains, params.crossings).getSegmentLock();
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        train = (train + 1) % trains;
+        Coordinates[] route = params.crossings[train];
+
+        for (int i = 0; i < route.length - 1; i++) {
+            segmentLock.lockTrainSegments(train, route[i], true);
+            segmentLock.unlockTrainSegments(train, route[i], true);
+        }
+        for (int i = route.length - 1; i > 0; i--) {
+            segmentLock.lockTrainSegments(train, route[i], false);
+            segmentLock.unlockTrainSegments(train, route[i], false);
+        }
+        segmentLock.unlockTrainSegments(train, route[0], false);
+        segmentLock.unlockTrainSegments(train, route[route.length - 1], true);
+    }
+}
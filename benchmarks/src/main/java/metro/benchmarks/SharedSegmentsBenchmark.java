@@ -0,0 +1,34 @@
+package metro.benchmarks;
+
+import metro.algorithm.ModelParameters;
+import metro.algorithm.map.TunnelsMapMonitor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of the tunnel's map monitor, dominated by createSharedSegments
+ * and the initialization of the SegmentLock for many routes, up to hundreds of trains.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SharedSegmentsBenchmark {
+    @Param({"3", "12", "48", "96", "384"})
+    int trains;
+
+    ModelParameters params;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        params = Fleet.create(trains);
+    }
+
+    @Benchmark
+    public TunnelsMapMonitor createMonitor() {
+        return new TunnelsMapMonitor(params.trains, params.crossings);
+    }
+}